@@ -0,0 +1,194 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.benchmark;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+import org.bukkit.plugin.EventExecutor;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+// A stubbed Server and PluginManager so the host can run without a Minecraft server.
+public final class BenchmarkServer {
+
+    private static NashornBukkit plugin;
+    private static World world;
+    private static List<Player> players = new ArrayList<>();
+    private static Map<Class<? extends Event>, EventExecutor> executors = new HashMap<>();
+
+    private BenchmarkServer() {
+    }
+
+    public static synchronized NashornBukkit getPlugin() throws IOException {
+        if (plugin != null) {
+            return plugin;
+        }
+
+        Logger logger = Logger.getLogger("BenchmarkServer");
+        PluginManager pluginManager = stub(PluginManager.class, (method, args) -> {
+            if (method.equals("registerEvent")) {
+                @SuppressWarnings("unchecked")
+                Class<? extends Event> event = (Class<? extends Event>) args[0];
+                executors.put(event, (EventExecutor) args[3]);
+            }
+            return null;
+        });
+        BukkitTask task = stub(BukkitTask.class, (method, args) -> method.equals("getTaskId") ? 1 : null);
+        BukkitScheduler scheduler = stub(BukkitScheduler.class, (method, args) -> method.startsWith("runTask") ? task : null);
+        Server server = stub(Server.class, (method, args) -> {
+            switch (method) {
+                case "getLogger":
+                    return logger;
+                case "getPluginManager":
+                    return pluginManager;
+                case "getScheduler":
+                    return scheduler;
+                case "isPrimaryThread":
+                    return true;
+                case "getOnlinePlayers":
+                    return players;
+                case "getName":
+                case "getVersion":
+                case "getBukkitVersion":
+                    return "benchmark";
+                default:
+                    return null;
+            }
+        });
+        Bukkit.setServer(server);
+
+        Path dataFolder = Files.createTempDirectory("nashornbukkit-benchmark");
+        Path extensions = Files.createDirectories(dataFolder.resolve("extensions"));
+        try (InputStream in = BenchmarkServer.class.getClassLoader().getResourceAsStream("extensions/finally.js")) {
+            Files.copy(in, extensions.resolve("finally.js"), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        plugin = new BenchmarkPlugin(new JavaPluginLoader(server), new PluginDescriptionFile("NashornBukkit", "benchmark", NashornBukkit.class.getName()), dataFolder.toFile());
+        plugin.getHost().loadExtensions(extensions);
+        return plugin;
+    }
+
+    public static Path writeScript(String id, String source) throws IOException {
+        return Files.write(getPlugin().getDataFolder().toPath().resolve(id + ".js"), source.getBytes("UTF-8"));
+    }
+
+    /**
+     * Returns a world whose blocks accept every change and keep none.
+     */
+    public static synchronized World getWorld() {
+        if (world == null) {
+            Block block = stub(Block.class, (method, args) -> method.equals("getType") ? Material.AIR : null);
+            Chunk chunk = stub(Chunk.class, (method, args) -> method.equals("getBlock") ? block : null);
+            world = stub(World.class, (method, args) -> {
+                switch (method) {
+                    case "getName":
+                        return "world";
+                    case "getMaxHeight":
+                        return 256;
+                    case "getBlockAt":
+                        return block;
+                    case "getChunkAt":
+                        return chunk;
+                    default:
+                        return null;
+                }
+            });
+        }
+        return world;
+    }
+
+    /**
+     * Puts players at random positions in a square of the given size around the origin of {@link #getWorld()}.
+     */
+    public static synchronized void addPlayers(int count, double size, long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            UUID id = new UUID(seed, i);
+            Location location = new Location(getWorld(), (random.nextDouble() - 0.5) * size, 64, (random.nextDouble() - 0.5) * size);
+            players.add(stub(Player.class, (method, args) -> {
+                switch (method) {
+                    case "getUniqueId":
+                        return id;
+                    case "getLocation":
+                        return location;
+                    case "getWorld":
+                        return location.getWorld();
+                    default:
+                        return null;
+                }
+            }));
+        }
+    }
+
+    public static EventExecutor getExecutor(Class<? extends Event> event) {
+        return executors.get(event);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Answer answer) {
+        return (T) Proxy.newProxyInstance(BenchmarkServer.class.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            Object result = answer.answer(method.getName(), args);
+            if (result == null && method.getReturnType().isPrimitive()) {
+                return method.getReturnType() == boolean.class ? Boolean.FALSE : method.getReturnType() == void.class ? null : 0;
+            }
+            return result;
+        });
+    }
+
+    private interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    private static class BenchmarkPlugin extends NashornBukkit {
+        private BenchmarkPlugin(JavaPluginLoader loader, PluginDescriptionFile description, java.io.File dataFolder) {
+            super(loader, description, dataFolder, new java.io.File(dataFolder, "NashornBukkit.jar"));
+        }
+    }
+}
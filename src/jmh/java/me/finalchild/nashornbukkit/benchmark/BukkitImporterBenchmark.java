@@ -0,0 +1,80 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.benchmark;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.util.BukkitImporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BukkitImporterBenchmark {
+
+    private NashornBukkit plugin;
+    private Field typesField;
+
+    @Setup
+    public void setup() throws Exception {
+        plugin = BenchmarkServer.getPlugin();
+        typesField = BukkitImporter.class.getDeclaredField("types");
+        typesField.setAccessible(true);
+    }
+
+    // Simulates a restart: drop the in-memory index so getTypes has to load it again.
+    @Setup(Level.Invocation)
+    public void forgetTypes() throws IllegalAccessException {
+        typesField.set(null, null);
+    }
+
+    @Benchmark
+    public Map<String, String> getTypesFromIndex() {
+        return BukkitImporter.getTypes();
+    }
+
+    @Benchmark
+    public Map<String, String> getTypesFromClasspath() throws Exception {
+        Files.deleteIfExists(plugin.getHost().getCacheDirectory().resolve("bukkit-types.txt"));
+        return BukkitImporter.getTypes();
+    }
+}
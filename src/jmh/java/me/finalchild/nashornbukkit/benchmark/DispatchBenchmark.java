@@ -0,0 +1,99 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.benchmark;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.script.Script;
+import org.bukkit.event.EventException;
+import org.bukkit.plugin.EventExecutor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatches an event to script handlers of one style: a script function, the same function adapted to a Consumer,
+ * or a function that ignores cancelled events, either by checking in the script or through the ignoreCancelled
+ * option. The event is cancelled for the last two.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int HANDLERS = 16;
+
+    @Param({"function", "consumer", "scriptFilter", "optionFilter"})
+    public String handler;
+
+    private EventExecutor executor;
+    private BenchmarkEvent event;
+
+    @Setup
+    public void setup() throws Exception {
+        NashornBukkit plugin = BenchmarkServer.getPlugin();
+        String type = "Java.type(\"" + BenchmarkEvent.class.getName() + "\")";
+        String register;
+        switch (handler) {
+            case "consumer":
+                register = "on(" + type + ", new (Java.type(\"java.util.function.Consumer\"))(function(event) {\n  event.hit();\n}));\n";
+                break;
+            case "scriptFilter":
+                register = "on(" + type + ", function(event) {\n  if (event.isCancelled()) return;\n  event.hit();\n});\n";
+                break;
+            case "optionFilter":
+                register = "on(" + type + ", function(event) {\n  event.hit();\n}, { ignoreCancelled: true });\n";
+                break;
+            default:
+                register = "on(" + type + ", function(event) {\n  event.hit();\n});\n";
+        }
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < HANDLERS; i++) {
+            source.append(register);
+        }
+        new Script(plugin.getHost(), BenchmarkServer.writeScript("dispatch", source.toString())).eval();
+        executor = BenchmarkServer.getExecutor(BenchmarkEvent.class);
+        event = new BenchmarkEvent();
+        event.setCancelled(handler.endsWith("Filter"));
+    }
+
+    @Benchmark
+    public int dispatchEvent() throws EventException {
+        executor.execute(null, event);
+        return event.getHits();
+    }
+}
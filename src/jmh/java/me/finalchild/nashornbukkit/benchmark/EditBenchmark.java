@@ -0,0 +1,95 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.benchmark;
+
+import jdk.nashorn.api.scripting.JSObject;
+import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.script.EditQueue;
+import me.finalchild.nashornbukkit.script.Script;
+import org.bukkit.World;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sets a 32x32x32 box of blocks from a script: one block at a time through Bukkit, into an edit one block at a time,
+ * or into an edit with a single fill call. The edits are applied in full before each operation ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EditBenchmark {
+
+    @Param({"bukkit", "set", "fill"})
+    public String method;
+
+    private EditQueue queue;
+    private JSObject function;
+    private World world;
+
+    @Setup
+    public void setup() throws Exception {
+        NashornBukkit plugin = BenchmarkServer.getPlugin();
+        Script script = new Script(plugin.getHost(), BenchmarkServer.writeScript("edit", ""
+                + "var Material = Java.type(\"org.bukkit.Material\");\n"
+                + "function bukkit(world) {\n"
+                + "  for (var y = 0; y < 32; y++) for (var z = 0; z < 32; z++) for (var x = 0; x < 32; x++)\n"
+                + "    world.getBlockAt(x, y, z).setType(Material.STONE);\n"
+                + "}\n"
+                + "function set(world) {\n"
+                + "  var edit = script.edit(world);\n"
+                + "  for (var y = 0; y < 32; y++) for (var z = 0; z < 32; z++) for (var x = 0; x < 32; x++)\n"
+                + "    edit.set(x, y, z, Material.STONE);\n"
+                + "  edit.apply();\n"
+                + "}\n"
+                + "function fill(world) {\n"
+                + "  script.edit(world).fill(0, 0, 0, 31, 31, 31, Material.STONE).apply();\n"
+                + "}\n"));
+        script.eval();
+        function = (JSObject) script.getContext().getAttribute(method);
+        queue = plugin.getHost().getEditQueue();
+        world = BenchmarkServer.getWorld();
+    }
+
+    @Benchmark
+    public int setBox() {
+        function.call(null, world);
+        queue.run();
+        return queue.getPendingEdits();
+    }
+}
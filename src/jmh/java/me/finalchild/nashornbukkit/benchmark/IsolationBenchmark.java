@@ -0,0 +1,129 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.benchmark;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.script.Script;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares scripts with their own globals against scripts in the shared global. {@code loadScript} measures loading
+ * one script; run it with {@code -prof gc} to see the allocation per load. {@code retainHeap} keeps {@link #SCRIPTS}
+ * scripts loaded at once and prints the heap they retain after a full GC, per script, with each iteration. JMH only
+ * reports times for single shots, so that figure is printed instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IsolationBenchmark {
+
+    private static final int SCRIPTS = 128;
+
+    @Param({"full", "shared"})
+    public String isolation;
+
+    private NashornBukkit plugin;
+    private Path scriptFile;
+    private List<Path> scriptFiles = new ArrayList<>();
+
+    @Setup
+    public void setup() throws Exception {
+        plugin = BenchmarkServer.getPlugin();
+        plugin.getHost().setSharedGlobals(isolation.equals("shared"));
+        scriptFile = BenchmarkServer.writeScript("isolated", "var hits = 0;\n"
+                + "on(Java.type(\"" + BenchmarkEvent.class.getName() + "\"), function(event) {\n"
+                + "  hits++;\n"
+                + "  event.hit();\n"
+                + "});\n"
+                + "function onDisable() {\n"
+                + "  hits = 0;\n"
+                + "}\n");
+        String source = new String(Files.readAllBytes(scriptFile), "UTF-8");
+        for (int i = 0; i < SCRIPTS; i++) {
+            scriptFiles.add(BenchmarkServer.writeScript("retained" + i, source));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        plugin.getHost().setSharedGlobals(false);
+    }
+
+    @Benchmark
+    public Script loadScript() throws Exception {
+        Script script = new Script(plugin.getHost(), scriptFile);
+        script.eval();
+        script.unload();
+        return script;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public List<Script> retainHeap() throws Exception {
+        long before = getUsedHeapAfterGc();
+        List<Script> scripts = new ArrayList<>(SCRIPTS);
+        for (Path file : scriptFiles) {
+            Script script = new Script(plugin.getHost(), file);
+            script.eval();
+            scripts.add(script);
+        }
+        System.out.println("retained " + (getUsedHeapAfterGc() - before) / SCRIPTS + " bytes per script");
+        for (Script script : scripts) {
+            script.unload();
+        }
+        return scripts;
+    }
+
+    private static long getUsedHeapAfterGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.benchmark;
+
+import jdk.nashorn.api.scripting.JSObject;
+import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.script.Script;
+import org.bukkit.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the players within 32 blocks of a point among players spread over 1024 by 1024 blocks, either by looking at
+ * every online player in the script or through the host's player index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProximityBenchmark {
+
+    @Param({"200"})
+    public int players;
+
+    @Param({"scan", "index"})
+    public String method;
+
+    private JSObject function;
+    private Location center;
+
+    @Setup
+    public void setup() throws Exception {
+        NashornBukkit plugin = BenchmarkServer.getPlugin();
+        BenchmarkServer.addPlayers(players, 1024, 42);
+        Script script = new Script(plugin.getHost(), BenchmarkServer.writeScript("proximity", ""
+                + "var Bukkit = Java.type(\"org.bukkit.Bukkit\");\n"
+                + "function scan(center, radius) {\n"
+                + "  var found = [];\n"
+                + "  for each (var player in Bukkit.getOnlinePlayers()) {\n"
+                + "    var location = player.getLocation();\n"
+                + "    var dx = location.getX() - center.getX(), dy = location.getY() - center.getY(), dz = location.getZ() - center.getZ();\n"
+                + "    if (dx * dx + dy * dy + dz * dz <= radius * radius) found.push(player);\n"
+                + "  }\n"
+                + "  return found.length;\n"
+                + "}\n"
+                + "function index(center, radius) {\n"
+                + "  return script.findPlayersNear(center, radius).length;\n"
+                + "}\n"));
+        script.eval();
+        function = (JSObject) script.getContext().getAttribute(method);
+        center = new Location(BenchmarkServer.getWorld(), 10, 64, 10);
+    }
+
+    @Benchmark
+    public Object findPlayersNear() {
+        return function.call(null, center, 32);
+    }
+}
@@ -24,18 +24,36 @@
 
 package me.finalchild.nashornbukkit;
 
+import me.finalchild.nashornbukkit.profile.StartupTrace;
 import me.finalchild.nashornbukkit.script.Host;
+import me.finalchild.nashornbukkit.script.ScriptWatcher;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 public class NashornBukkit extends JavaPlugin {
 
     private static NashornBukkit instance;
 
     private Host host;
+    private ScriptWatcher watcher;
 
     public NashornBukkit() {
         instance = this;
-        host = new Host();
+        host = new Host(getDataFolder().toPath().resolve("cache"));
+    }
+
+    // Only for benchmarks and tests running outside a server, like the JavaPlugin constructor it calls.
+    protected NashornBukkit(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+        instance = this;
+        host = new Host(getDataFolder().toPath().resolve("cache"));
     }
 
     public static NashornBukkit getInstance() {
@@ -44,15 +62,74 @@ public class NashornBukkit extends JavaPlugin {
 
     @Override
     public void onEnable() {
+        saveDefaultConfig();
+        StartupTrace trace = getHost().getStartupTrace();
+        if (getConfig().getBoolean("startup-trace", false)) {
+            trace.start();
+        }
+        StartupTrace.Span span = trace.begin(null, "saveResource");
         saveResource("extensions/finally.js", true);
+        trace.end(span);
+
+        NashornBukkitCommand command = new NashornBukkitCommand(this);
+        getCommand("nashornbukkit").setExecutor(command);
+        getCommand("nashornbukkit").setTabCompleter(command);
 
+        span = trace.begin(null, "startServices");
+        getHost().getProfiler().setEnabled(getConfig().getBoolean("profiling", false));
+        getHost().setSharedGlobals(getConfig().getString("isolation", "full").equalsIgnoreCase("shared"));
+        getHost().getTickScheduler().start((long) (getConfig().getDouble("scheduler.tick-budget", 10) * TimeUnit.MILLISECONDS.toNanos(1)));
+        getHost().getSnapshotManager().start();
+        getHost().getEditQueue().start((long) (getConfig().getDouble("edits.tick-budget", 5) * TimeUnit.MILLISECONDS.toNanos(1)));
+        int workers = getConfig().getInt("async.workers", 0);
+        getHost().getWorkerPool().start(workers > 0 ? workers : Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        if (getConfig().getBoolean("watchdog.enabled", false)) {
+            getHost().getWatchdog().start(
+                    (long) (getConfig().getDouble("watchdog.cpu-budget", 50) * TimeUnit.MILLISECONDS.toNanos(1)),
+                    getConfig().getLong("watchdog.allocation-budget", 0) << 10,
+                    getConfig().getInt("watchdog.strikes", 3),
+                    (long) (getConfig().getDouble("watchdog.abort-after", 0) * TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+
+        trace.end(span);
+
+        span = trace.begin(null, "loadExtensions");
         getHost().loadExtensions(getDataFolder().toPath().resolve("extensions"));
+        trace.end(span);
+        span = trace.begin(null, "loadScripts");
         getHost().loadScripts(getDataFolder().toPath());
+        trace.end(span);
+        span = trace.begin(null, "evalScripts");
         getHost().evalScripts();
+        trace.end(span);
+
+        if (trace.isEnabled()) {
+            try {
+                for (String line : trace.finish(getDataFolder().toPath().resolve("profiles"), "startup-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()))) {
+                    getLogger().info(line);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (getConfig().getBoolean("watch", false)) {
+            watcher = new ScriptWatcher(getHost(), getDataFolder().toPath());
+            try {
+                watcher.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                watcher = null;
+            }
+        }
     }
 
     @Override
     public void onDisable() {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
         getHost().onDisable();
     }
 
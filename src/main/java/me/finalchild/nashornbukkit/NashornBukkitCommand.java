@@ -0,0 +1,218 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit;
+
+import me.finalchild.nashornbukkit.profile.Profiler;
+import me.finalchild.nashornbukkit.script.TickScheduler;
+import me.finalchild.nashornbukkit.util.ScriptExceptionLogger;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabCompleter;
+
+import javax.script.ScriptException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+public class NashornBukkitCommand implements CommandExecutor, TabCompleter {
+
+    private NashornBukkit plugin;
+
+    public NashornBukkitCommand(NashornBukkit plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length == 0) {
+            return false;
+        }
+        switch (args[0].toLowerCase()) {
+            case "profile":
+                return profile(sender, Arrays.copyOfRange(args, 1, args.length));
+            case "scheduler":
+                return scheduler(sender, Arrays.copyOfRange(args, 1, args.length));
+            case "edits":
+                return edits(sender, Arrays.copyOfRange(args, 1, args.length));
+            case "watchdog":
+                return watchdog(sender, Arrays.copyOfRange(args, 1, args.length));
+            case "reload":
+                return reload(sender, Arrays.copyOfRange(args, 1, args.length));
+            case "unload":
+                return unload(sender, Arrays.copyOfRange(args, 1, args.length));
+            default:
+                return false;
+        }
+    }
+
+    private boolean scheduler(CommandSender sender, String[] args) {
+        TickScheduler scheduler = plugin.getHost().getTickScheduler();
+        if (args.length == 1 && args[0].equalsIgnoreCase("reset")) {
+            scheduler.resetStats();
+            sender.sendMessage("Scheduler statistics reset.");
+            return true;
+        }
+        if (args.length != 0) {
+            return false;
+        }
+        for (String line : scheduler.format()) {
+            sender.sendMessage(line);
+        }
+        return true;
+    }
+
+    private boolean edits(CommandSender sender, String[] args) {
+        if (args.length != 0) {
+            return false;
+        }
+        for (String line : plugin.getHost().getEditQueue().format()) {
+            sender.sendMessage(line);
+        }
+        return true;
+    }
+
+    private boolean watchdog(CommandSender sender, String[] args) {
+        if (args.length != 0) {
+            return false;
+        }
+        for (String line : plugin.getHost().getWatchdog().format()) {
+            sender.sendMessage(line);
+        }
+        return true;
+    }
+
+    private boolean reload(CommandSender sender, String[] args) {
+        if (args.length != 1) {
+            return false;
+        }
+        try {
+            plugin.getHost().reloadScript(args[0]);
+        } catch (IllegalArgumentException e) {
+            sender.sendMessage(e.getMessage());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            sender.sendMessage("Could not read " + args[0] + ": " + e.getMessage());
+            return true;
+        } catch (ScriptException e) {
+            ScriptExceptionLogger.log(e);
+            sender.sendMessage("Could not evaluate " + args[0] + ": " + e.getMessage());
+            return true;
+        }
+        sender.sendMessage(plugin.getHost().getScript(args[0]).isPresent() ? "Reloaded " + args[0] + "." : "Unloaded " + args[0] + ".");
+        return true;
+    }
+
+    private boolean unload(CommandSender sender, String[] args) {
+        if (args.length != 1) {
+            return false;
+        }
+        if (!plugin.getHost().getScript(args[0]).isPresent()) {
+            sender.sendMessage("No script named " + args[0] + " is loaded.");
+            return true;
+        }
+        plugin.getHost().unloadScript(args[0]);
+        sender.sendMessage("Unloaded " + args[0] + ".");
+        return true;
+    }
+
+    private boolean profile(CommandSender sender, String[] args) {
+        Profiler profiler = plugin.getHost().getProfiler();
+        String action = args.length == 0 ? "show" : args[0].toLowerCase();
+        switch (action) {
+            case "on":
+                profiler.setEnabled(true);
+                sender.sendMessage("Profiling enabled.");
+                return true;
+            case "off":
+                profiler.setEnabled(false);
+                sender.sendMessage("Profiling disabled.");
+                return true;
+            case "reset":
+                profiler.reset();
+                sender.sendMessage("Profiling data reset.");
+                return true;
+            case "show":
+                int limit = 10;
+                if (args.length > 1) {
+                    try {
+                        limit = Integer.parseInt(args[1]);
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+                sender.sendMessage(profiler.isEnabled() ? "Profiling is enabled." : "Profiling is disabled.");
+                for (String line : profiler.format(limit)) {
+                    sender.sendMessage(line);
+                }
+                return true;
+            case "dump":
+                Path file = plugin.getDataFolder().toPath().resolve("profiles").resolve("profile-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".txt");
+                try {
+                    profiler.dump(file);
+                    sender.sendMessage("Profile written to " + file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    sender.sendMessage("Could not write the profile: " + e.getMessage());
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        if (args.length == 1) {
+            return filter(Arrays.asList("profile", "scheduler", "edits", "watchdog", "reload", "unload"), args[0]);
+        }
+        if (args.length == 2 && args[0].equalsIgnoreCase("scheduler")) {
+            return filter(Collections.singletonList("reset"), args[1]);
+        }
+        if (args.length == 2 && (args[0].equalsIgnoreCase("reload") || args[0].equalsIgnoreCase("unload"))) {
+            return filter(new ArrayList<>(plugin.getHost().getScripts().keySet()), args[1]);
+        }
+        if (args.length == 2 && args[0].equalsIgnoreCase("profile")) {
+            return filter(Arrays.asList("on", "off", "reset", "show", "dump"), args[1]);
+        }
+        return Collections.emptyList();
+    }
+
+    private static List<String> filter(List<String> options, String prefix) {
+        List<String> result = new ArrayList<>();
+        for (String option : options) {
+            if (option.toLowerCase().startsWith(prefix.toLowerCase())) {
+                result.add(option);
+            }
+        }
+        return result;
+    }
+}
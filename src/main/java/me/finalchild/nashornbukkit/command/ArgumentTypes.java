@@ -0,0 +1,215 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.command;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class ArgumentTypes {
+
+    public static final ArgumentType STRING = (sender, input) -> input;
+
+    public static final ArgumentType TEXT = new ArgumentType() {
+        @Override
+        public Object parse(CommandSender sender, String input) {
+            return input;
+        }
+
+        @Override
+        public boolean isGreedy() {
+            return true;
+        }
+    };
+
+    public static final ArgumentType INTEGER = (sender, input) -> {
+        try {
+            return Integer.parseInt(input);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + input + "' is not a whole number.");
+        }
+    };
+
+    public static final ArgumentType NUMBER = (sender, input) -> {
+        try {
+            double number = Double.parseDouble(input);
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                throw new NumberFormatException();
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + input + "' is not a number.");
+        }
+    };
+
+    public static final ArgumentType BOOLEAN = new ArgumentType() {
+        private PrefixIndex index = new PrefixIndex(Arrays.asList("true", "false"));
+
+        @Override
+        public Object parse(CommandSender sender, String input) {
+            if (input.equalsIgnoreCase("true")) {
+                return true;
+            }
+            if (input.equalsIgnoreCase("false")) {
+                return false;
+            }
+            throw new IllegalArgumentException("'" + input + "' is not true or false.");
+        }
+
+        @Override
+        public List<String> complete(CommandSender sender, String prefix) {
+            return index.complete(prefix);
+        }
+    };
+
+    public static final ArgumentType PLAYER = new ArgumentType() {
+        @Override
+        public Object parse(CommandSender sender, String input) {
+            Player player = Bukkit.getServer().getPlayerExact(input);
+            if (player == null) {
+                throw new IllegalArgumentException("Player '" + input + "' is not online.");
+            }
+            return player;
+        }
+
+        @Override
+        public List<String> complete(CommandSender sender, String prefix) {
+            // Players come and go, so they are filtered in one pass instead of being indexed for every completion.
+            List<String> result = new ArrayList<>();
+            for (Player player : Bukkit.getServer().getOnlinePlayers()) {
+                if (player.getName().regionMatches(true, 0, prefix, 0, prefix.length())) {
+                    result.add(player.getName());
+                }
+            }
+            result.sort(String.CASE_INSENSITIVE_ORDER);
+            return result;
+        }
+    };
+
+    public static final ArgumentType WORLD = new ArgumentType() {
+        @Override
+        public Object parse(CommandSender sender, String input) {
+            World world = Bukkit.getServer().getWorld(input);
+            if (world == null) {
+                throw new IllegalArgumentException("World '" + input + "' does not exist.");
+            }
+            return world;
+        }
+
+        @Override
+        public List<String> complete(CommandSender sender, String prefix) {
+            List<String> result = new ArrayList<>();
+            for (World world : Bukkit.getServer().getWorlds()) {
+                if (world.getName().regionMatches(true, 0, prefix, 0, prefix.length())) {
+                    result.add(world.getName());
+                }
+            }
+            result.sort(String.CASE_INSENSITIVE_ORDER);
+            return result;
+        }
+    };
+
+    public static final ArgumentType MATERIAL = new ArgumentType() {
+        private PrefixIndex index;
+
+        @Override
+        public Object parse(CommandSender sender, String input) {
+            Material material = Material.matchMaterial(input);
+            if (material == null) {
+                throw new IllegalArgumentException("'" + input + "' is not a material.");
+            }
+            return material;
+        }
+
+        @Override
+        public List<String> complete(CommandSender sender, String prefix) {
+            if (index == null) {
+                index = new PrefixIndex(Arrays.stream(Material.values()).map(material -> material.name().toLowerCase(Locale.ROOT)).collect(Collectors.toList()));
+            }
+            return index.complete(prefix);
+        }
+    };
+
+    private static final Map<String, ArgumentType> types = new HashMap<>();
+
+    static {
+        types.put("string", STRING);
+        types.put("text", TEXT);
+        types.put("int", INTEGER);
+        types.put("integer", INTEGER);
+        types.put("number", NUMBER);
+        types.put("boolean", BOOLEAN);
+        types.put("player", PLAYER);
+        types.put("world", WORLD);
+        types.put("material", MATERIAL);
+    }
+
+    public static ArgumentType get(String name) {
+        ArgumentType type = types.get(name.toLowerCase(Locale.ROOT));
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown argument type: " + name);
+        }
+        return type;
+    }
+
+    /**
+     * An argument that must be one of the given options. Parses to the option as it was given here.
+     */
+    public static ArgumentType choice(String... options) {
+        PrefixIndex index = new PrefixIndex(Arrays.asList(options));
+        Map<String, String> byKey = new HashMap<>();
+        for (String option : options) {
+            byKey.put(option.toLowerCase(Locale.ROOT), option);
+        }
+        return new ArgumentType() {
+            @Override
+            public Object parse(CommandSender sender, String input) {
+                String option = byKey.get(input.toLowerCase(Locale.ROOT));
+                if (option == null) {
+                    throw new IllegalArgumentException("'" + input + "' must be one of " + String.join(", ", options) + ".");
+                }
+                return option;
+            }
+
+            @Override
+            public List<String> complete(CommandSender sender, String prefix) {
+                return index.complete(prefix);
+            }
+        };
+    }
+
+    private ArgumentTypes() {
+    }
+}
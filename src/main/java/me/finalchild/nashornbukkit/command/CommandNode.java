@@ -0,0 +1,264 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.command;
+
+import org.bukkit.command.CommandSender;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * One node of a command tree. A node has subcommands, which are matched by name, and a list of typed arguments,
+ * which are parsed before its executor is called with a map of argument names to values.
+ * <pre>
+ * command("home")
+ *     .sub("set").arg("name", "string").executes(function(sender, args) { ... });
+ * </pre>
+ */
+public class CommandNode {
+
+    private String path;
+    private Map<String, CommandNode> children = new LinkedHashMap<>();
+    private List<Argument> arguments = new ArrayList<>();
+    private BiFunction<CommandSender, Map<String, Object>, Object> executor;
+    private String permission;
+
+    private PrefixIndex childIndex;
+
+    public CommandNode(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Returns the subcommand with the given name, creating it if needed.
+     */
+    public CommandNode sub(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        CommandNode child = children.get(key);
+        if (child == null) {
+            child = new CommandNode(path + " " + name);
+            children.put(key, child);
+            childIndex = null;
+        }
+        return child;
+    }
+
+    public CommandNode arg(String name, String type) {
+        return arg(name, ArgumentTypes.get(type));
+    }
+
+    public CommandNode arg(String name, ArgumentType type) {
+        return addArgument(new Argument(name, type, false));
+    }
+
+    public CommandNode optionalArg(String name, String type) {
+        return optionalArg(name, ArgumentTypes.get(type));
+    }
+
+    public CommandNode optionalArg(String name, ArgumentType type) {
+        return addArgument(new Argument(name, type, true));
+    }
+
+    public CommandNode choice(String name, String... options) {
+        return arg(name, ArgumentTypes.choice(options));
+    }
+
+    public CommandNode permission(String permission) {
+        this.permission = permission;
+        return this;
+    }
+
+    public CommandNode executes(BiFunction<CommandSender, Map<String, Object>, Object> executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    private CommandNode addArgument(Argument argument) {
+        if (!arguments.isEmpty()) {
+            Argument last = arguments.get(arguments.size() - 1);
+            if (last.type.isGreedy()) {
+                throw new IllegalStateException("'" + last.name + "' takes the rest of the line, so no argument can follow it");
+            }
+            if (last.optional && !argument.optional) {
+                throw new IllegalStateException("A required argument cannot follow the optional '" + last.name + "'");
+            }
+        }
+        arguments.add(argument);
+        return this;
+    }
+
+    /**
+     * Walks the tree along the given arguments and calls the executor of the node it ends at. Problems are reported
+     * to the sender, so this always returns true.
+     */
+    public boolean execute(CommandSender sender, String[] args) {
+        CommandNode node = this;
+        int i = 0;
+        while (i < args.length) {
+            CommandNode child = node.children.get(args[i].toLowerCase(Locale.ROOT));
+            if (child == null) {
+                break;
+            }
+            node = child;
+            i++;
+        }
+
+        if (!node.testPermission(sender)) {
+            sender.sendMessage("You do not have permission to use this command.");
+            return true;
+        }
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Argument argument : node.arguments) {
+            if (i >= args.length) {
+                if (argument.optional) {
+                    break;
+                }
+                node.sendUsage(sender);
+                return true;
+            }
+            String input = argument.type.isGreedy() ? String.join(" ", Arrays.asList(args).subList(i, args.length)) : args[i];
+            i = argument.type.isGreedy() ? args.length : i + 1;
+            try {
+                values.put(argument.name, argument.type.parse(sender, input));
+            } catch (IllegalArgumentException e) {
+                sender.sendMessage(e.getMessage());
+                node.sendUsage(sender);
+                return true;
+            }
+        }
+
+        if (i < args.length || node.executor == null) {
+            node.sendUsage(sender);
+            return true;
+        }
+
+        if (Boolean.FALSE.equals(node.executor.apply(sender, values))) {
+            node.sendUsage(sender);
+        }
+        return true;
+    }
+
+    public List<String> tabComplete(CommandSender sender, String[] args) {
+        if (args.length == 0) {
+            return Collections.emptyList();
+        }
+
+        CommandNode node = this;
+        int argument = 0;
+        for (int i = 0; i < args.length - 1; i++) {
+            CommandNode child = argument == 0 ? node.children.get(args[i].toLowerCase(Locale.ROOT)) : null;
+            if (child != null) {
+                node = child;
+            } else if (argument < node.arguments.size() && !node.arguments.get(argument).type.isGreedy()) {
+                argument++;
+            } else {
+                // Past the last argument, or inside a greedy one, which completes only its first word.
+                return Collections.emptyList();
+            }
+        }
+
+        if (!node.testPermission(sender)) {
+            return Collections.emptyList();
+        }
+
+        String prefix = args[args.length - 1];
+        List<String> completions = new ArrayList<>();
+        if (argument == 0) {
+            for (String name : node.getChildIndex().complete(prefix)) {
+                if (node.children.get(name.toLowerCase(Locale.ROOT)).testPermission(sender)) {
+                    completions.add(name);
+                }
+            }
+        }
+        if (argument < node.arguments.size()) {
+            completions.addAll(node.arguments.get(argument).type.complete(sender, prefix));
+        }
+        return completions;
+    }
+
+    public List<String> getUsage() {
+        List<String> usage = new ArrayList<>();
+        collectUsage(usage);
+        return usage;
+    }
+
+    private void collectUsage(List<String> usage) {
+        if (executor != null) {
+            StringBuilder line = new StringBuilder("/").append(path);
+            for (Argument argument : arguments) {
+                line.append(' ').append(argument.optional ? '[' : '<').append(argument.name).append(argument.optional ? ']' : '>');
+            }
+            usage.add(line.toString());
+        }
+        for (CommandNode child : children.values()) {
+            child.collectUsage(usage);
+        }
+    }
+
+    private void sendUsage(CommandSender sender) {
+        List<String> usage = getUsage();
+        if (usage.isEmpty()) {
+            sender.sendMessage("Unknown command.");
+        } else {
+            sender.sendMessage("Usage:");
+            usage.forEach(sender::sendMessage);
+        }
+    }
+
+    private boolean testPermission(CommandSender sender) {
+        return permission == null || sender.hasPermission(permission);
+    }
+
+    private PrefixIndex getChildIndex() {
+        if (childIndex == null) {
+            List<String> names = new ArrayList<>();
+            for (CommandNode child : children.values()) {
+                names.add(child.path.substring(child.path.lastIndexOf(' ') + 1));
+            }
+            childIndex = new PrefixIndex(names);
+        }
+        return childIndex;
+    }
+
+    private static class Argument {
+
+        private String name;
+        private ArgumentType type;
+        private boolean optional;
+
+        private Argument(String name, ArgumentType type, boolean optional) {
+            this.name = name;
+            this.type = type;
+            this.optional = optional;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.command;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A sorted, case-insensitive index of completion candidates. Finding the candidates for a prefix is a binary search
+ * instead of a scan. Building it sorts the candidates, so it only pays off for candidates that do not change.
+ */
+public class PrefixIndex {
+
+    private String[] keys;
+    private String[] values;
+
+    public PrefixIndex(Collection<String> candidates) {
+        values = candidates.toArray(new String[candidates.size()]);
+        Arrays.sort(values, String.CASE_INSENSITIVE_ORDER);
+        keys = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            keys[i] = values[i].toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public List<String> complete(String prefix) {
+        String key = prefix.toLowerCase(Locale.ROOT);
+        int from = Arrays.binarySearch(keys, key);
+        if (from < 0) {
+            from = -from - 1;
+        }
+        int to = from;
+        while (to < keys.length && keys[to].startsWith(key)) {
+            to++;
+        }
+        if (from == to) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(Arrays.asList(values).subList(from, to));
+    }
+
+    public int size() {
+        return values.length;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.profile;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+public class Profiler {
+
+    private volatile boolean enabled;
+    private ConcurrentMap<String, HandlerStats> stats = new ConcurrentHashMap<>();
+
+    private com.sun.management.ThreadMXBean allocations;
+    private volatile boolean trackingAllocations;
+    private int allocationTrackers;
+    private boolean restoreAllocationTracking;
+    private long allocationOverhead;
+
+    public Profiler() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            allocations = (com.sun.management.ThreadMXBean) threads;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled == this.enabled) {
+            return;
+        }
+        if (enabled) {
+            startAllocationTracking();
+        }
+        this.enabled = enabled;
+        if (!enabled) {
+            stopAllocationTracking();
+        }
+    }
+
+    /**
+     * Turns on the JVM's allocation counter of threads, which is shared by the whole server, until every caller has
+     * called {@link #stopAllocationTracking()}. It is then left as it was found.
+     */
+    public synchronized void startAllocationTracking() {
+        if (allocations == null || allocationTrackers++ > 0) {
+            return;
+        }
+        if (!allocations.isThreadAllocatedMemoryEnabled()) {
+            allocations.setThreadAllocatedMemoryEnabled(true);
+            restoreAllocationTracking = true;
+        }
+        // Reading the counter allocates a little itself, which is taken off every measurement.
+        long first = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        allocationOverhead = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - first;
+        trackingAllocations = true;
+    }
+
+    public synchronized void stopAllocationTracking() {
+        if (allocations == null || allocationTrackers == 0 || --allocationTrackers > 0) {
+            return;
+        }
+        trackingAllocations = false;
+        if (restoreAllocationTracking) {
+            allocations.setThreadAllocatedMemoryEnabled(false);
+            restoreAllocationTracking = false;
+        }
+    }
+
+    public HandlerStats getStats(String script, String handler) {
+        return stats.computeIfAbsent(script + '\0' + handler, k -> new HandlerStats(script, handler));
+    }
+
+    public boolean isTrackingAllocations() {
+        return trackingAllocations;
+    }
+
+    /**
+     * Returns how many bytes the current thread has allocated so far, or 0 if that cannot be measured. Pass the
+     * result to {@link #record(HandlerStats, long, long)} when the invocation is over.
+     */
+    public long getAllocatedBytes() {
+        return trackingAllocations ? allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    public void record(HandlerStats handlerStats, long startNanos, long startAllocatedBytes) {
+        long nanos = System.nanoTime() - startNanos;
+        // Tracking may have stopped during the invocation, which leaves nothing to measure.
+        long allocatedBytes = trackingAllocations && startAllocatedBytes > 0 ? Math.max(0, getAllocatedBytes() - startAllocatedBytes - allocationOverhead) : 0;
+        handlerStats.record(nanos, allocatedBytes);
+    }
+
+    public void reset() {
+        stats.values().forEach(HandlerStats::reset);
+    }
+
+    public void remove(String script) {
+        stats.values().removeIf(handlerStats -> handlerStats.getScript().equals(script));
+    }
+
+    public List<HandlerStats> getSortedStats() {
+        List<HandlerStats> result = new ArrayList<>();
+        for (HandlerStats handlerStats : stats.values()) {
+            if (handlerStats.getCount() > 0) {
+                result.add(handlerStats);
+            }
+        }
+        result.sort(Comparator.comparingLong(HandlerStats::getTotalNanos).reversed());
+        return result;
+    }
+
+    public List<String> format(int limit) {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%-16s %-32s %10s %10s %10s %10s %10s %12s", "script", "handler", "count", "total ms", "mean us", "p99 us", "max us", "alloc B/call"));
+        List<HandlerStats> sortedStats = getSortedStats();
+        for (HandlerStats handlerStats : sortedStats.subList(0, Math.min(limit, sortedStats.size()))) {
+            lines.add(String.format("%-16s %-32s %10d %10.1f %10.1f %10.1f %10.1f %12s",
+                    handlerStats.getScript(),
+                    handlerStats.getHandler(),
+                    handlerStats.getCount(),
+                    handlerStats.getTotalNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1),
+                    handlerStats.getMeanNanos() / (double) TimeUnit.MICROSECONDS.toNanos(1),
+                    handlerStats.getPercentileNanos(99) / (double) TimeUnit.MICROSECONDS.toNanos(1),
+                    handlerStats.getMaxNanos() / (double) TimeUnit.MICROSECONDS.toNanos(1),
+                    allocations != null ? Long.toString(handlerStats.getMeanAllocatedBytes()) : "n/a"));
+        }
+        return lines;
+    }
+
+    public void dump(Path file) throws IOException {
+        List<String> lines = format(Integer.MAX_VALUE);
+        lines.add("");
+        lines.add("Histograms (bucket upper bound in ns: count)");
+        for (HandlerStats handlerStats : getSortedStats()) {
+            StringBuilder builder = new StringBuilder(handlerStats.getScript()).append(' ').append(handlerStats.getHandler()).append(':');
+            long[] histogram = handlerStats.getHistogram();
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] != 0) {
+                    builder.append(' ').append(i == 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1).append('=').append(histogram[i]);
+                }
+            }
+            lines.add(builder.toString());
+        }
+        Files.createDirectories(file.getParent());
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+}
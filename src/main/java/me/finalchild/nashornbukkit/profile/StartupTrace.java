@@ -0,0 +1,255 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.profile;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of startup takes and how much it allocates, as a tree of spans.
+ * <p>
+ * Spans nest under the span that is open on the same thread, or under an explicitly given parent when the work runs
+ * on another thread. While the trace is not started, {@link #begin(String, String)} returns null and
+ * {@link #end(Span)} ignores it, so the calls can stay in place at no cost.
+ */
+public class StartupTrace {
+
+    private Profiler profiler;
+    private volatile boolean enabled;
+    private long startNanos;
+    private List<Span> roots = Collections.synchronizedList(new ArrayList<>());
+    private ThreadLocal<Deque<Span>> open = ThreadLocal.withInitial(ArrayDeque::new);
+
+    public StartupTrace(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public void start() {
+        if (!enabled) {
+            profiler.startAllocationTracking();
+        }
+        roots.clear();
+        startNanos = System.nanoTime();
+        enabled = true;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param script the id of the script the span belongs to, or null
+     */
+    public Span begin(String script, String name) {
+        return enabled ? begin(script, name, open.get().peek()) : null;
+    }
+
+    public Span begin(String script, String name, Span parent) {
+        if (!enabled) {
+            return null;
+        }
+        Span span = new Span(script, name, System.nanoTime() - startNanos, profiler.getAllocatedBytes());
+        if (parent != null) {
+            synchronized (parent) {
+                parent.children.add(span);
+            }
+        } else {
+            roots.add(span);
+        }
+        open.get().push(span);
+        return span;
+    }
+
+    public void end(Span span) {
+        if (span == null) {
+            return;
+        }
+        span.wallNanos = System.nanoTime() - startNanos - span.startNanos;
+        span.allocatedBytes = profiler.getAllocatedBytes() - span.allocatedBytes;
+        open.get().remove(span);
+    }
+
+    /**
+     * Stops the trace and writes it to the directory, as JSON and as folded stacks of wall time in microseconds, which
+     * flame graph tools read. Returns the summary lines to log.
+     */
+    public List<String> finish(Path directory, String baseName) throws IOException {
+        boolean allocationTracked = profiler.isTrackingAllocations();
+        if (enabled) {
+            enabled = false;
+            profiler.stopAllocationTracking();
+        }
+        List<Span> spans;
+        synchronized (roots) {
+            spans = new ArrayList<>(roots);
+        }
+
+        JsonObject report = new JsonObject();
+        report.addProperty("allocationTracked", allocationTracked);
+        long totalNanos = 0;
+        JsonArray phases = new JsonArray();
+        for (Span span : spans) {
+            totalNanos += span.wallNanos;
+            phases.add(toJson(span));
+        }
+        report.addProperty("wallNanos", totalNanos);
+        report.add("phases", phases);
+
+        Map<String, Map<String, long[]>> scripts = new LinkedHashMap<>();
+        for (Span span : spans) {
+            collectScripts(span, scripts);
+        }
+        List<Map.Entry<String, Map<String, long[]>>> sortedScripts = new ArrayList<>(scripts.entrySet());
+        sortedScripts.sort((a, b) -> Long.compare(total(b.getValue()), total(a.getValue())));
+        JsonArray scriptArray = new JsonArray();
+        for (Map.Entry<String, Map<String, long[]>> entry : sortedScripts) {
+            JsonObject script = new JsonObject();
+            script.addProperty("script", entry.getKey());
+            script.addProperty("wallNanos", total(entry.getValue()));
+            JsonObject scriptPhases = new JsonObject();
+            for (Map.Entry<String, long[]> phase : entry.getValue().entrySet()) {
+                JsonObject values = new JsonObject();
+                values.addProperty("wallNanos", phase.getValue()[0]);
+                values.addProperty("allocatedBytes", phase.getValue()[1]);
+                scriptPhases.add(phase.getKey(), values);
+            }
+            script.add("phases", scriptPhases);
+            scriptArray.add(script);
+        }
+        report.add("scripts", scriptArray);
+
+        List<String> folded = new ArrayList<>();
+        for (Span span : spans) {
+            fold(span, "", folded);
+        }
+
+        Files.createDirectories(directory);
+        Files.write(directory.resolve(baseName + ".json"), new GsonBuilder().setPrettyPrinting().create().toJson(report).getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve(baseName + ".folded"), folded, StandardCharsets.UTF_8);
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("Startup took %.1f ms; trace written to %s", totalNanos / (double) TimeUnit.MILLISECONDS.toNanos(1), directory.resolve(baseName + ".json")));
+        for (Map.Entry<String, Map<String, long[]>> entry : sortedScripts.subList(0, Math.min(5, sortedScripts.size()))) {
+            lines.add(String.format("  %-24s %8.1f ms", entry.getKey(), total(entry.getValue()) / (double) TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+        roots.clear();
+        return lines;
+    }
+
+    private static JsonObject toJson(Span span) {
+        JsonObject object = new JsonObject();
+        object.addProperty("name", span.name);
+        if (span.script != null) {
+            object.addProperty("script", span.script);
+        }
+        object.addProperty("thread", span.thread);
+        object.addProperty("startNanos", span.startNanos);
+        object.addProperty("wallNanos", span.wallNanos);
+        object.addProperty("allocatedBytes", span.allocatedBytes);
+        List<Span> children = span.getChildren();
+        if (!children.isEmpty()) {
+            JsonArray array = new JsonArray();
+            for (Span child : children) {
+                array.add(toJson(child));
+            }
+            object.add("children", array);
+        }
+        return object;
+    }
+
+    private static void collectScripts(Span span, Map<String, Map<String, long[]>> scripts) {
+        if (span.script != null) {
+            long[] values = scripts.computeIfAbsent(span.script, k -> new LinkedHashMap<>()).computeIfAbsent(span.name, k -> new long[2]);
+            values[0] += span.wallNanos;
+            values[1] += span.allocatedBytes;
+            // Nested spans of the same script are already part of this one.
+            return;
+        }
+        for (Span child : span.getChildren()) {
+            collectScripts(child, scripts);
+        }
+    }
+
+    private static long total(Map<String, long[]> phases) {
+        long total = 0;
+        for (long[] values : phases.values()) {
+            total += values[0];
+        }
+        return total;
+    }
+
+    private static void fold(Span span, String prefix, List<String> lines) {
+        // Frames may not contain the separator or spaces.
+        String frame = (span.script != null ? span.script + ";" : "") + span.name;
+        String stack = prefix + frame.replace(' ', '_');
+        long selfNanos = span.wallNanos;
+        for (Span child : span.getChildren()) {
+            // Children on other threads may overlap, so self time is clamped.
+            selfNanos -= child.wallNanos;
+            fold(child, stack + ";", lines);
+        }
+        long selfMicros = Math.max(0, selfNanos) / TimeUnit.MICROSECONDS.toNanos(1);
+        if (selfMicros > 0) {
+            lines.add(stack + " " + selfMicros);
+        }
+    }
+
+    public static final class Span {
+
+        private final String script;
+        private final String name;
+        private final String thread = Thread.currentThread().getName();
+        private final long startNanos;
+        private final List<Span> children = new ArrayList<>();
+        private long wallNanos;
+        // The counter of the thread at the start until the span ends, then the difference.
+        private long allocatedBytes;
+
+        private Span(String script, String name, long startNanos, long allocatedBytes) {
+            this.script = script;
+            this.name = name;
+            this.startNanos = startNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        private synchronized List<Span> getChildren() {
+            return new ArrayList<>(children);
+        }
+    }
+}
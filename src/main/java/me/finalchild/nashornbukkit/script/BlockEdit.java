@@ -0,0 +1,209 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of block changes in one world, applied by the {@link EditQueue} over as many ticks as it takes.
+ * <p>
+ * Every change is packed into a single int and grouped by chunk as it is added, so a batch of millions of blocks
+ * stays compact and is applied one chunk at a time. A batch can be filled on any thread, but only by one at a time.
+ */
+public class BlockEdit {
+
+    private static final int MAX_Y = 255;
+    private static final int MAX_TYPE_ID = 4095;
+
+    private Script script;
+    private World world;
+    private Map<Long, Chunk> chunks = new HashMap<>();
+    private List<Chunk> order = new ArrayList<>();
+    private Chunk last;
+    private int size;
+    private boolean applied;
+
+    BlockEdit(Script script, World world) {
+        this.script = script;
+        this.world = world;
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * Returns how many changes were added. A block that is set twice counts twice, and the later change wins.
+     */
+    public int size() {
+        return size;
+    }
+
+    public BlockEdit set(int x, int y, int z, Material type) {
+        return set(x, y, z, type, 0);
+    }
+
+    public BlockEdit set(int x, int y, int z, Material type, int data) {
+        add(x, y, z, pack(type, data));
+        return this;
+    }
+
+    /**
+     * Sets every block whose position is in the array, which holds x, y and z for each block in turn.
+     */
+    public BlockEdit setAll(int[] positions, Material type) {
+        if (positions.length % 3 != 0) {
+            throw new IllegalArgumentException("Positions must be given as x, y, z triples");
+        }
+        int block = pack(type, 0);
+        for (int i = 0; i < positions.length; i += 3) {
+            add(positions[i], positions[i + 1], positions[i + 2], block);
+        }
+        return this;
+    }
+
+    /**
+     * Sets every block between two corners, both inclusive.
+     */
+    public BlockEdit fill(int x1, int y1, int z1, int x2, int y2, int z2, Material type) {
+        return fill(x1, y1, z1, x2, y2, z2, type, 0);
+    }
+
+    public BlockEdit fill(int x1, int y1, int z1, int x2, int y2, int z2, Material type, int data) {
+        int block = pack(type, data);
+        int minY = Math.max(0, Math.min(y1, y2));
+        int maxY = Math.min(MAX_Y, Math.max(y1, y2));
+        int maxX = Math.max(x1, x2);
+        int maxZ = Math.max(z1, z2);
+        // Chunk by chunk, so each chunk is looked up once instead of once per block.
+        for (int cz = Math.min(z1, z2) >> 4; cz <= maxZ >> 4; cz++) {
+            for (int cx = Math.min(x1, x2) >> 4; cx <= maxX >> 4; cx++) {
+                int fromX = Math.max(Math.min(x1, x2), cx << 4);
+                int toX = Math.min(maxX, (cx << 4) + 15);
+                int fromZ = Math.max(Math.min(z1, z2), cz << 4);
+                int toZ = Math.min(maxZ, (cz << 4) + 15);
+                Chunk chunk = getChunk(cx, cz);
+                for (int y = minY; y <= maxY; y++) {
+                    for (int z = fromZ; z <= toZ; z++) {
+                        for (int x = fromX; x <= toX; x++) {
+                            chunk.add(y, z, x, block);
+                        }
+                    }
+                }
+                size += (maxY - minY + 1) * (toZ - fromZ + 1) * (toX - fromX + 1);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Queues the changes and returns a promise of the number of blocks set, which is completed on the main thread
+     * once every change has been applied. The batch cannot be changed afterwards.
+     */
+    public ScriptPromise apply() {
+        synchronized (this) {
+            if (applied) {
+                throw new IllegalStateException("This edit was already applied");
+            }
+            applied = true;
+        }
+        return new ScriptPromise(script, script.getHost().getEditQueue().submit(this));
+    }
+
+    Script getScript() {
+        return script;
+    }
+
+    List<Chunk> getChunks() {
+        return order;
+    }
+
+    @SuppressWarnings("deprecation")
+    private int pack(Material type, int data) {
+        if (applied) {
+            throw new IllegalStateException("This edit was already applied");
+        }
+        if (!type.isBlock() || type.getId() > MAX_TYPE_ID) {
+            throw new IllegalArgumentException("Not a block: " + type);
+        }
+        return type.getId() << 4 | (data & 15);
+    }
+
+    private void add(int x, int y, int z, int block) {
+        if (y < 0 || y > MAX_Y) {
+            throw new IllegalArgumentException("Y out of range: " + y);
+        }
+        Chunk chunk = last;
+        if (chunk == null || chunk.x != x >> 4 || chunk.z != z >> 4) {
+            chunk = getChunk(x >> 4, z >> 4);
+        }
+        chunk.add(y, z & 15, x & 15, block);
+        size++;
+    }
+
+    private Chunk getChunk(int chunkX, int chunkZ) {
+        long key = (long) chunkX << 32 | chunkZ & 0xFFFFFFFFL;
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) {
+            chunk = new Chunk(chunkX, chunkZ);
+            chunks.put(key, chunk);
+            order.add(chunk);
+        }
+        last = chunk;
+        return chunk;
+    }
+
+    /**
+     * The changes in one chunk. Each is one int: y, z and x within the chunk in the upper 16 bits, and the type id and
+     * data in the lower 16.
+     */
+    static final class Chunk {
+
+        final int x;
+        final int z;
+        int[] entries = new int[64];
+        int size;
+
+        private Chunk(int x, int z) {
+            this.x = x;
+            this.z = z;
+        }
+
+        private void add(int y, int z, int x, int block) {
+            if (size == entries.length) {
+                int[] grown = new int[entries.length * 2];
+                System.arraycopy(entries, 0, grown, 0, size);
+                entries = grown;
+            }
+            entries[size++] = (y << 8 | (z & 15) << 4 | (x & 15)) << 16 | block;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.util.ScriptExceptionLogger;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies {@link BlockEdit}s on the main thread, a chunk at a time, spending at most the configured time per tick.
+ * Edits are applied in the order they were submitted, so later edits win where they overlap.
+ * <p>
+ * Blocks are set without physics, as a build or reset would want, so a batch does not trigger updates of its
+ * neighbours halfway through.
+ */
+public class EditQueue implements Runnable {
+
+    // How many blocks are set between checks of the clock.
+    private static final int CHECK_INTERVAL = 256;
+
+    private long budgetNanos;
+    private BukkitTask bukkitTask;
+
+    private Queue<Job> incoming = new ConcurrentLinkedQueue<>();
+    private Queue<Job> jobs = new ArrayDeque<>();
+
+    private long blocksSet;
+    private long editsCompleted;
+    private long busyTicks;
+
+    public void start(long budgetNanos) {
+        this.budgetNanos = budgetNanos;
+        if (bukkitTask == null) {
+            bukkitTask = NashornBukkit.getInstance().getServer().getScheduler().runTaskTimer(NashornBukkit.getInstance(), this, 1, 1);
+        }
+    }
+
+    public void stop() {
+        if (bukkitTask != null) {
+            bukkitTask.cancel();
+            bukkitTask = null;
+        }
+        Job job;
+        while ((job = incoming.poll()) != null) {
+            job.future.cancel(false);
+        }
+        while ((job = jobs.poll()) != null) {
+            job.future.cancel(false);
+        }
+    }
+
+    CompletableFuture<Object> submit(BlockEdit edit) {
+        Job job = new Job(edit);
+        incoming.add(job);
+        return job.future;
+    }
+
+    public void cancel(Script script) {
+        cancel(incoming.iterator(), script);
+        cancel(jobs.iterator(), script);
+    }
+
+    private static void cancel(Iterator<Job> iterator, Script script) {
+        while (iterator.hasNext()) {
+            Job job = iterator.next();
+            if (job.edit.getScript() == script) {
+                job.future.cancel(false);
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Job added;
+        while ((added = incoming.poll()) != null) {
+            jobs.add(added);
+        }
+        if (jobs.isEmpty()) {
+            return;
+        }
+        busyTicks++;
+
+        long start = System.nanoTime();
+        Job job;
+        while ((job = jobs.peek()) != null) {
+            if (job.future.isDone()) {
+                jobs.poll();
+                continue;
+            }
+            boolean finished;
+            try {
+                finished = job.apply(start, budgetNanos);
+            } catch (RuntimeException e) {
+                ScriptExceptionLogger.log("Could not apply an edit of " + job.edit.getScript().getId(), e);
+                jobs.poll();
+                job.future.completeExceptionally(e);
+                continue;
+            }
+            if (!finished) {
+                break;
+            }
+            jobs.poll();
+            editsCompleted++;
+            job.future.complete(job.set);
+        }
+    }
+
+    public int getPendingEdits() {
+        return incoming.size() + jobs.size();
+    }
+
+    public List<String> format() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Budget per tick: " + (budgetNanos > 0 ? String.format("%.2f ms", budgetNanos / (double) TimeUnit.MILLISECONDS.toNanos(1)) : "unlimited"));
+        lines.add("Blocks set: " + blocksSet + ", edits completed: " + editsCompleted + ", pending: " + getPendingEdits() + ", busy ticks: " + busyTicks);
+        return lines;
+    }
+
+    private class Job {
+
+        private BlockEdit edit;
+        private CompletableFuture<Object> future = new CompletableFuture<>();
+        private List<BlockEdit.Chunk> chunks;
+        private int chunk;
+        private int entry;
+        private int set;
+
+        private Job(BlockEdit edit) {
+            this.edit = edit;
+            this.chunks = edit.getChunks();
+        }
+
+        /**
+         * Applies changes until the budget of this tick is spent. Returns whether all changes have been applied.
+         */
+        @SuppressWarnings("deprecation")
+        private boolean apply(long start, long budgetNanos) {
+            World world = edit.getWorld();
+            int sinceCheck = 0;
+            for (; chunk < chunks.size(); chunk++, entry = 0) {
+                BlockEdit.Chunk current = chunks.get(chunk);
+                // Looked up, and loaded if needed, once for all of its blocks.
+                Chunk target = world.getChunkAt(current.x, current.z);
+                int[] entries = current.entries;
+                for (; entry < current.size; entry++) {
+                    // At least one check interval of blocks is set every tick, so a tiny budget still makes progress.
+                    if (++sinceCheck == CHECK_INTERVAL) {
+                        sinceCheck = 0;
+                        if (budgetNanos > 0 && System.nanoTime() - start >= budgetNanos) {
+                            return false;
+                        }
+                    }
+                    int packed = entries[entry];
+                    int position = packed >>> 16;
+                    Block block = target.getBlock(position & 15, position >>> 8, position >>> 4 & 15);
+                    block.setTypeIdAndData(packed >>> 4 & 0xFFF, (byte) (packed & 15), false);
+                    set++;
+                    blocksSet++;
+                }
+                // The changes of a chunk are no longer needed once it is done.
+                current.entries = null;
+            }
+            return true;
+        }
+    }
+}
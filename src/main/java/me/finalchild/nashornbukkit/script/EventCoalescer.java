@@ -0,0 +1,108 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.block.BlockEvent;
+import org.bukkit.event.entity.EntityEvent;
+import org.bukkit.event.player.PlayerEvent;
+import org.bukkit.event.world.WorldEvent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Buffers events by key and hands the latest event of every key to the handler in one array per window. A handler
+ * that only needs the latest state, such as where each player is now, is called once per window instead of once per
+ * event.
+ * <p>
+ * Events are delivered after they have been handled, so cancelling or changing them has no effect.
+ */
+public class EventCoalescer {
+
+    private static final Object ALL = new Object();
+
+    private Function<Event, Object> key;
+    private Map<Object, Event> pending = new LinkedHashMap<>();
+
+    public EventCoalescer(Function<Event, Object> key) {
+        this.key = key;
+    }
+
+    public synchronized void add(Event event) {
+        pending.put(key.apply(event), event);
+    }
+
+    /**
+     * Hands the buffered events to the handler, if there are any, and empties the buffer.
+     */
+    public void flush(Consumer<? super Event[]> handler) {
+        Event[] events;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            events = pending.values().toArray(new Event[pending.size()]);
+            pending.clear();
+        }
+        handler.accept(events);
+    }
+
+    /**
+     * @param name {@code player}, {@code entity}, {@code block}, {@code world} or {@code all}, which keeps only the
+     *             latest event of all
+     * @throws IllegalArgumentException if the key is unknown or does not apply to the event
+     */
+    public static Function<Event, Object> getKey(Class<? extends Event> event, String name) {
+        switch (name) {
+            case "all":
+                return e -> ALL;
+            case "player":
+            case "entity":
+                if (PlayerEvent.class.isAssignableFrom(event)) {
+                    return e -> ((PlayerEvent) e).getPlayer().getUniqueId();
+                }
+                if (EntityEvent.class.isAssignableFrom(event)) {
+                    return e -> ((EntityEvent) e).getEntity().getUniqueId();
+                }
+                break;
+            case "block":
+                if (BlockEvent.class.isAssignableFrom(event)) {
+                    return e -> ((BlockEvent) e).getBlock();
+                }
+                break;
+            case "world":
+                if (WorldEvent.class.isAssignableFrom(event)) {
+                    return e -> ((WorldEvent) e).getWorld();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown coalescing key: " + name);
+        }
+        throw new IllegalArgumentException("Events of " + event.getSimpleName() + " cannot be coalesced by " + name);
+    }
+}
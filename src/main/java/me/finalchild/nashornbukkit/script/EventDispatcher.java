@@ -0,0 +1,209 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import jdk.nashorn.internal.objects.Global;
+import jdk.nashorn.internal.runtime.Context;
+import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.profile.HandlerStats;
+import me.finalchild.nashornbukkit.profile.Profiler;
+import me.finalchild.nashornbukkit.util.ScriptExceptionLogger;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.EventExecutor;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+public class EventDispatcher {
+
+    private Host host;
+    private Map<Class<? extends Event>, Map<EventPriority, Slot>> slots = new HashMap<>();
+
+    public EventDispatcher(Host host) {
+        this.host = host;
+    }
+
+    public void register(Script script, Class<? extends Event> event, EventPriority priority, Consumer<Event> executor) {
+        register(script, event, priority, executor, null);
+    }
+
+    /**
+     * @param filter tested before the executor is called, or null to call it for every event
+     */
+    public synchronized void register(Script script, Class<? extends Event> event, EventPriority priority, Consumer<Event> executor, Predicate<Event> filter) {
+        Map<EventPriority, Slot> priorities = slots.computeIfAbsent(event, k -> new EnumMap<>(EventPriority.class));
+        Slot slot = priorities.get(priority);
+        if (slot == null) {
+            slot = new Slot(host);
+            priorities.put(priority, slot);
+            NashornBukkit.getInstance().getServer().getPluginManager().registerEvent(event, slot.listener, priority, slot, NashornBukkit.getInstance());
+        }
+        HandlerStats stats = host.getProfiler().getStats(script.getId(), "on " + event.getSimpleName() + " " + priority);
+        slot.add(new Handler(script, executor, filter, stats));
+    }
+
+    /**
+     * Removes the handlers of a script, and unregisters every slot left without handlers from Bukkit so that its
+     * events are no longer passed to this plugin.
+     */
+    public synchronized void unregister(Script script) {
+        for (Iterator<Map<EventPriority, Slot>> events = slots.values().iterator(); events.hasNext(); ) {
+            Map<EventPriority, Slot> priorities = events.next();
+            for (Iterator<Slot> iterator = priorities.values().iterator(); iterator.hasNext(); ) {
+                Slot slot = iterator.next();
+                slot.remove(script);
+                if (slot.handlers.length == 0) {
+                    HandlerList.unregisterAll(slot.listener);
+                    iterator.remove();
+                }
+            }
+            if (priorities.isEmpty()) {
+                events.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (Map<EventPriority, Slot> priorities : slots.values()) {
+            for (Slot slot : priorities.values()) {
+                HandlerList.unregisterAll(slot.listener);
+            }
+        }
+        slots.clear();
+    }
+
+    private static class Slot implements EventExecutor {
+        // One listener per slot, so that a slot can be unregistered without the others.
+        private Listener listener = new Listener() {};
+        private Host host;
+        private Profiler profiler;
+        private volatile Handler[] handlers = new Handler[0];
+
+        private Slot(Host host) {
+            this.host = host;
+            this.profiler = host.getProfiler();
+        }
+
+        private void add(Handler handler) {
+            Handler[] oldHandlers = handlers;
+            Handler[] newHandlers = new Handler[oldHandlers.length + 1];
+            System.arraycopy(oldHandlers, 0, newHandlers, 0, oldHandlers.length);
+            newHandlers[oldHandlers.length] = handler;
+            handlers = newHandlers;
+        }
+
+        private void remove(Script script) {
+            List<Handler> kept = new ArrayList<>();
+            for (Handler handler : handlers) {
+                if (handler.script != script) {
+                    kept.add(handler);
+                }
+            }
+            handlers = kept.toArray(new Handler[kept.size()]);
+        }
+
+        @Override
+        public void execute(Listener listener, Event event) {
+            Handler[] handlers = this.handlers;
+            boolean profiling = profiler.isEnabled();
+            boolean shared = host.isSharedGlobals();
+            Watchdog watchdog = host.getWatchdog();
+            // Making a global current costs a thread local write, so it is only switched between handlers that need
+            // different ones, and restored once after all of them.
+            Global previousGlobal = Context.getGlobal();
+            Global currentGlobal = previousGlobal;
+            try {
+                for (int i = 0; i < handlers.length; i++) {
+                    Handler handler = handlers[i];
+                    if (handler.filter != null && !handler.filter.test(event)) {
+                        continue;
+                    }
+                    if (watchdog.isAborted(handler.script)) {
+                        continue;
+                    }
+                    long allocated = profiling ? profiler.getAllocatedBytes() : 0;
+                    long start = profiling ? System.nanoTime() : 0;
+                    Script previous = shared ? host.enter(handler.script) : null;
+                    Watchdog.Invocation invocation = null;
+                    try {
+                        invocation = watchdog.enter(handler.script, handler.stats.getHandler());
+                        if (handler.invoker != null) {
+                            if (handler.invoker.getGlobal() != currentGlobal) {
+                                currentGlobal = handler.invoker.getGlobal();
+                                Context.setGlobal(currentGlobal);
+                            }
+                            handler.invoker.invoke(event);
+                        } else {
+                            handler.executor.accept(event);
+                        }
+                    } catch (Throwable t) {
+                        // A script aborted by the watchdog meanwhile is skipped like one that was aborted before.
+                        if (!watchdog.isAborted(handler.script)) {
+                            ScriptExceptionLogger.log("Could not pass " + event.getEventName() + " to " + handler.script.getId(), t);
+                        }
+                    } finally {
+                        watchdog.exit(invocation);
+                        if (shared) {
+                            host.exit(previous);
+                        }
+                    }
+                    if (profiling) {
+                        profiler.record(handler.stats, start, allocated);
+                    }
+                }
+            } finally {
+                if (currentGlobal != previousGlobal) {
+                    Context.setGlobal(previousGlobal);
+                }
+            }
+        }
+    }
+
+    private static class Handler {
+        private Script script;
+        private Consumer<Event> executor;
+        private EventInvoker<Event> invoker;
+        private Predicate<Event> filter;
+        private HandlerStats stats;
+
+        @SuppressWarnings("unchecked")
+        private Handler(Script script, Consumer<Event> executor, Predicate<Event> filter, HandlerStats stats) {
+            this.script = script;
+            this.executor = executor;
+            this.invoker = executor instanceof EventInvoker ? (EventInvoker<Event>) executor : null;
+            this.filter = filter;
+            this.stats = stats;
+        }
+    }
+}
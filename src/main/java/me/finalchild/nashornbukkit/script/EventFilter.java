@@ -0,0 +1,209 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.block.BlockEvent;
+import org.bukkit.event.entity.EntityEvent;
+import org.bukkit.event.player.PlayerEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.world.WorldEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Compiles declarative handler options into a Java predicate that is tested before the handler is called, so events
+ * that a script would ignore right away never enter the script.
+ * <pre>
+ * on(PlayerMoveEvent, handler, { world: "world", changedBlock: true, ignoreCancelled: true });
+ * </pre>
+ * Supported options:
+ * <ul>
+ * <li>{@code world}: a world or world name, or an array of them</li>
+ * <li>{@code material}: the type of the event's block, as a material or name, or an array of them</li>
+ * <li>{@code ignoreCancelled}: skip events that are already cancelled</li>
+ * <li>{@code playerOnly}: skip entity events whose entity is not a player</li>
+ * <li>{@code changedBlock}: skip moves within the same block</li>
+ * <li>{@code priority}: the priority, as an {@link EventPriority} or its name</li>
+ * <li>{@code coalesce} and {@code window}: see {@link EventCoalescer}, handled by {@link Script}</li>
+ * </ul>
+ */
+public class EventFilter {
+
+    public static EventPriority getPriority(Map<String, Object> options) {
+        Object priority = options.get("priority");
+        if (priority == null) {
+            return EventPriority.NORMAL;
+        }
+        if (priority instanceof EventPriority) {
+            return (EventPriority) priority;
+        }
+        return EventPriority.valueOf(priority.toString().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return the predicate, or null if the options do not filter anything
+     * @throws IllegalArgumentException if an option is unknown or does not apply to the event
+     */
+    public static Predicate<Event> compile(Class<? extends Event> event, Map<String, Object> options) {
+        List<Predicate<Event>> predicates = new ArrayList<>();
+        for (Map.Entry<String, Object> option : options.entrySet()) {
+            Object value = option.getValue();
+            switch (option.getKey()) {
+                case "priority":
+                case "coalesce":
+                case "window":
+                    break;
+                case "ignoreCancelled":
+                    if (isTrue(value)) {
+                        require(event, Cancellable.class, option.getKey());
+                        predicates.add(e -> !((Cancellable) e).isCancelled());
+                    }
+                    break;
+                case "playerOnly":
+                    if (isTrue(value) && !PlayerEvent.class.isAssignableFrom(event)) {
+                        require(event, EntityEvent.class, option.getKey());
+                        predicates.add(e -> ((EntityEvent) e).getEntity() instanceof Player);
+                    }
+                    break;
+                case "changedBlock":
+                    if (isTrue(value)) {
+                        require(event, PlayerMoveEvent.class, option.getKey());
+                        predicates.add(e -> changedBlock(((PlayerMoveEvent) e).getFrom(), ((PlayerMoveEvent) e).getTo()));
+                    }
+                    break;
+                case "world":
+                    Set<String> worlds = new HashSet<>();
+                    for (Object world : toList(value)) {
+                        worlds.add(world instanceof World ? ((World) world).getName() : world.toString());
+                    }
+                    Function<Event, World> getWorld = getWorldAccessor(event);
+                    predicates.add(e -> {
+                        World world = getWorld.apply(e);
+                        return world != null && worlds.contains(world.getName());
+                    });
+                    break;
+                case "material":
+                    require(event, BlockEvent.class, option.getKey());
+                    Set<Material> materials = EnumSet.noneOf(Material.class);
+                    for (Object material : toList(value)) {
+                        Material parsed = material instanceof Material ? (Material) material : Material.matchMaterial(material.toString());
+                        if (parsed == null) {
+                            throw new IllegalArgumentException("Unknown material: " + material);
+                        }
+                        materials.add(parsed);
+                    }
+                    predicates.add(e -> materials.contains(((BlockEvent) e).getBlock().getType()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown event option: " + option.getKey());
+            }
+        }
+
+        switch (predicates.size()) {
+            case 0:
+                return null;
+            case 1:
+                return predicates.get(0);
+            default:
+                return e -> {
+                    for (int i = 0; i < predicates.size(); i++) {
+                        if (!predicates.get(i).test(e)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
+        }
+    }
+
+    private static Function<Event, World> getWorldAccessor(Class<? extends Event> event) {
+        if (PlayerEvent.class.isAssignableFrom(event)) {
+            return e -> ((PlayerEvent) e).getPlayer().getWorld();
+        }
+        if (BlockEvent.class.isAssignableFrom(event)) {
+            return e -> ((BlockEvent) e).getBlock().getWorld();
+        }
+        if (EntityEvent.class.isAssignableFrom(event)) {
+            return e -> ((EntityEvent) e).getEntity().getWorld();
+        }
+        if (WorldEvent.class.isAssignableFrom(event)) {
+            return e -> ((WorldEvent) e).getWorld();
+        }
+        throw new IllegalArgumentException("The world option does not apply to " + event.getSimpleName());
+    }
+
+    private static boolean changedBlock(Location from, Location to) {
+        return to == null
+                || from.getBlockX() != to.getBlockX()
+                || from.getBlockY() != to.getBlockY()
+                || from.getBlockZ() != to.getBlockZ()
+                || from.getWorld() != to.getWorld();
+    }
+
+    private static void require(Class<? extends Event> event, Class<?> type, String option) {
+        if (!type.isAssignableFrom(event)) {
+            throw new IllegalArgumentException("The " + option + " option does not apply to " + event.getSimpleName());
+        }
+    }
+
+    private static boolean isTrue(Object value) {
+        return Boolean.TRUE.equals(value);
+    }
+
+    private static Collection<?> toList(Object value) {
+        if (value instanceof ScriptObjectMirror && ((ScriptObjectMirror) value).isArray()) {
+            return ((ScriptObjectMirror) value).values();
+        }
+        if (value instanceof Collection) {
+            return (Collection<?>) value;
+        }
+        if (value instanceof Object[]) {
+            return Arrays.asList((Object[]) value);
+        }
+        return Collections.singletonList(value);
+    }
+
+    private EventFilter() {
+    }
+}
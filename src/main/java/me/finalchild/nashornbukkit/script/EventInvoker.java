@@ -0,0 +1,121 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import jdk.nashorn.internal.objects.Global;
+import jdk.nashorn.internal.runtime.Context;
+import jdk.nashorn.internal.runtime.ScriptRuntime;
+import jdk.nashorn.internal.runtime.linker.Bootstrap;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Field;
+import java.util.function.Consumer;
+
+/**
+ * Calls one script function through a call site of its own.
+ * <p>
+ * A function passed where a {@link Consumer} is expected is wrapped in a generic adapter, and every call goes through
+ * the adapter's lookup of the function. Here the call site only ever sees this function, so it stays monomorphic. The
+ * site takes its arguments as Object, since Nashorn compiles functions for object arguments alike whatever their
+ * class.
+ */
+final class EventInvoker<T> implements Consumer<T> {
+
+    private static Field globalField;
+
+    private final Global global;
+    private final Object function;
+    private final MethodHandle handle;
+
+    private EventInvoker(Global global, Object function, MethodHandle handle) {
+        this.global = global;
+        this.function = function;
+        this.handle = handle;
+    }
+
+    /**
+     * Returns a consumer that calls the function under the global it belongs to, whichever global is current. A
+     * function whose global cannot be found is called through its mirror instead.
+     */
+    static <T> Consumer<T> create(ScriptObjectMirror function) {
+        Global global = getGlobal(function);
+        // Only unwraps to the function itself when given the mirror's own global.
+        Object unwrapped = global != null ? ScriptObjectMirror.unwrap(function, global) : function;
+        if (unwrapped == function) {
+            return value -> function.call(null, value);
+        }
+        MethodHandle invoker = Bootstrap.createDynamicInvoker("dyn:call", Object.class, Object.class, Object.class, Object.class);
+        return new EventInvoker<>(global, unwrapped, invoker);
+    }
+
+    private static Global getGlobal(ScriptObjectMirror mirror) {
+        try {
+            if (globalField == null) {
+                Field field = ScriptObjectMirror.class.getDeclaredField("global");
+                field.setAccessible(true);
+                globalField = field;
+            }
+            return (Global) globalField.get(mirror);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    Global getGlobal() {
+        return global;
+    }
+
+    @Override
+    public void accept(T value) {
+        Global previous = Context.getGlobal();
+        boolean switched = previous != global;
+        if (switched) {
+            Context.setGlobal(global);
+        }
+        try {
+            invoke(value);
+        } finally {
+            if (switched) {
+                Context.setGlobal(previous);
+            }
+        }
+    }
+
+    /**
+     * Calls the function without making its global current, for callers that already did, such as the
+     * {@link EventDispatcher}, which switches the global once for a run of handlers sharing it.
+     */
+    void invoke(T value) {
+        try {
+            // invokeExact needs the result assigned to match the Object return type of the call site.
+            Object ignored = handle.invokeExact(function, (Object) ScriptRuntime.UNDEFINED, (Object) value);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+}
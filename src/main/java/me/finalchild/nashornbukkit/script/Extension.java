@@ -24,6 +24,9 @@
 
 package me.finalchild.nashornbukkit.script;
 
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+import java.io.IOException;
 import java.nio.file.Path;
 
 public class Extension {
@@ -32,6 +35,8 @@ public class Extension {
 
     private String id;
 
+    private volatile CompiledScript compiled;
+
     public Extension(Host host, Path file) {
         this.host = host;
         this.file = file;
@@ -52,6 +57,22 @@ public class Extension {
         return id;
     }
 
+    public void prepare() throws IOException, ScriptException {
+        if (compiled != null) {
+            return;
+        }
+        synchronized (this) {
+            if (compiled != null) {
+                return;
+            }
+            compiled = getHost().getScriptCache().compile(getFile());
+        }
+    }
+
+    public CompiledScript getCompiled() {
+        return compiled;
+    }
+
     @Override
     public boolean equals(Object o) {
         return o instanceof Extension && getFile().equals(((Extension) o).getFile());
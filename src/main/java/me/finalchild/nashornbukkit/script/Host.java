@@ -24,32 +24,108 @@
 
 package me.finalchild.nashornbukkit.script;
 
+import jdk.nashorn.api.scripting.JSObject;
 import jdk.nashorn.api.scripting.NashornScriptEngine;
 import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.profile.Profiler;
+import me.finalchild.nashornbukkit.profile.StartupTrace;
+import me.finalchild.nashornbukkit.snapshot.SnapshotManager;
+import me.finalchild.nashornbukkit.spatial.PlayerIndex;
+import me.finalchild.nashornbukkit.store.StoreManager;
 import me.finalchild.nashornbukkit.util.BukkitImporter;
 import me.finalchild.nashornbukkit.util.ScriptExceptionLogger;
 
+import javax.script.Bindings;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 public class Host {
 
+    private static final Set<String> OBJECT_MEMBERS = new HashSet<>(Arrays.asList("class", "getClass", "hashCode", "equals", "toString", "notify", "notifyAll", "wait"));
+
     private NashornScriptEngine engine;
     private Map<String, Extension> loadedExtensions = new HashMap<>();
     private Map<String, Script> loadedScripts = new HashMap<>();
     private BukkitImporter importer;
+    private ScriptCache scriptCache;
+    private Path cacheDirectory;
+    private Profiler profiler;
+    private EventDispatcher eventDispatcher;
+    private TickScheduler tickScheduler;
+    private WorkerPool workerPool;
+    private Watchdog watchdog;
+    private StoreManager storeManager;
+    private SnapshotManager snapshotManager;
+    private EditQueue editQueue;
+    private PlayerIndex playerIndex;
+    private StartupTrace startupTrace;
+    private Path scriptDirectory;
+
+    private boolean sharedGlobals;
+    private ScriptContext sharedContext;
+    private Set<String> builtinNames;
+    private List<String> scopeNames;
+    private Set<String> sharedExtensions = new HashSet<>();
+    private Set<String> sharedExtensionsBeingInstalled = new HashSet<>();
+    private ThreadLocal<Script> currentScript = new ThreadLocal<>();
+
+    public Host(Path cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+        engine = createEngine(cacheDirectory.resolve("nashorn"));
+        importer = new BukkitImporter(this);
+        scriptCache = new ScriptCache(engine);
+        profiler = new Profiler();
+        eventDispatcher = new EventDispatcher(this);
+        tickScheduler = new TickScheduler();
+        workerPool = new WorkerPool(profiler);
+        watchdog = new Watchdog(this);
+        storeManager = new StoreManager(cacheDirectory.resolveSibling("data"));
+        snapshotManager = new SnapshotManager();
+        editQueue = new EditQueue();
+        playerIndex = new PlayerIndex();
+        startupTrace = new StartupTrace(profiler);
+    }
 
-    public Host() {
-        engine = (NashornScriptEngine) new NashornScriptEngineFactory().getScriptEngine(/*new String[] {"-scripting"}, */NashornBukkit.class.getClassLoader());
-        importer = new BukkitImporter();
+    /**
+     * Nashorn on Java 8 has no engine option for the directory of its code cache; it reads a system property once,
+     * when the engine is created. The property is set only for that, so other plugins do not see it.
+     */
+    private static NashornScriptEngine createEngine(Path codeCache) {
+        String previous = System.getProperty("nashorn.persistent.code.cache");
+        System.setProperty("nashorn.persistent.code.cache", codeCache.toString());
+        try {
+            return (NashornScriptEngine) new NashornScriptEngineFactory().getScriptEngine(new String[] {/*"-scripting", */"--persistent-code-cache"}, NashornBukkit.class.getClassLoader());
+        } finally {
+            if (previous == null) {
+                System.clearProperty("nashorn.persistent.code.cache");
+            } else {
+                System.setProperty("nashorn.persistent.code.cache", previous);
+            }
+        }
     }
 
     public void loadExtensions(Path directory) {
@@ -71,6 +147,7 @@ public class Host {
     }
 
     public void loadScripts(Path directory) {
+        scriptDirectory = directory;
         if (!Files.exists(directory)) {
             try {
                 Files.createDirectory(directory);
@@ -93,9 +170,14 @@ public class Host {
     }
 
     public void evalScripts() {
-        BukkitImporter.setCaching(true);
+        prepareScripts();
 
-        for (Script loadedScript : loadedScripts.values()) {
+        List<Script> scripts = new ArrayList<>(loadedScripts.values());
+        scripts.sort(Comparator.comparing(Script::getId));
+        for (Script loadedScript : scripts) {
+            if (!loadedScript.isPrepared()) {
+                continue;
+            }
             try {
                 loadedScript.eval();
             } catch (IOException e) {
@@ -105,7 +187,66 @@ public class Host {
             }
         }
 
-        BukkitImporter.setCaching(false);
+        NashornBukkit.getInstance().getLogger().info("Script cache: " + scriptCache.getHits() + " hits, " + scriptCache.getMisses() + " misses");
+    }
+
+    private void prepareScripts() {
+        StartupTrace.Span span = startupTrace.begin(null, "prepare");
+        try {
+            prepareScripts(span);
+        } finally {
+            startupTrace.end(span);
+        }
+    }
+
+    private void prepareScripts(StartupTrace.Span parent) {
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (Extension extension : loadedExtensions.values()) {
+            tasks.add(() -> {
+                StartupTrace.Span span = startupTrace.begin(null, "compile extension " + extension.getId(), parent);
+                try {
+                    extension.prepare();
+                } finally {
+                    startupTrace.end(span);
+                }
+                return null;
+            });
+        }
+        for (Script script : loadedScripts.values()) {
+            tasks.add(() -> {
+                StartupTrace.Span span = startupTrace.begin(script.getId(), "compile", parent);
+                try {
+                    script.prepare();
+                } finally {
+                    startupTrace.end(span);
+                }
+                return null;
+            });
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        // Reading and hashing the files and looking them up in the cache runs in parallel; the compiler itself takes
+        // one source at a time, as it shares the engine.
+        ForkJoinPool pool = new ForkJoinPool(Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            for (Future<Object> future : pool.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof ScriptException) {
+                        ScriptExceptionLogger.log((ScriptException) e.getCause());
+                    } else {
+                        e.getCause().printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+        }
     }
 
     private void loadExtension(Path file) {
@@ -114,8 +255,138 @@ public class Host {
     }
 
     public void loadScript(Path file) throws IOException, ScriptException {
+        Script script;
+        StartupTrace.Span span = startupTrace.begin(Script.getId(file), "construct");
+        try {
+            script = new Script(this, file);
+        } finally {
+            startupTrace.end(span);
+        }
+        loadedScripts.put(script.getId(), script);
+    }
+
+    public void unloadScript(String id) {
+        Script script = loadedScripts.remove(id);
+        if (script != null) {
+            script.unload();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the id could name a file outside of the script directory
+     */
+    public void reloadScript(String id) throws IOException, ScriptException {
+        if (id.isEmpty() || id.contains("..") || id.indexOf('/') >= 0 || id.indexOf('\\') >= 0) {
+            throw new IllegalArgumentException("Not a script name: " + id);
+        }
+        Path file = getScript(id).map(Script::getFile).orElseGet(() -> scriptDirectory.resolve(id + ".js"));
+        unloadScript(id);
+        if (!Files.exists(file)) {
+            return;
+        }
+
         Script script = new Script(this, file);
         loadedScripts.put(script.getId(), script);
+        script.prepare();
+        script.eval();
+    }
+
+    public boolean isSharedGlobals() {
+        return sharedGlobals;
+    }
+
+    public void setSharedGlobals(boolean sharedGlobals) {
+        this.sharedGlobals = sharedGlobals;
+    }
+
+    public synchronized ScriptContext getSharedContext() throws ScriptException {
+        if (sharedContext != null) {
+            return sharedContext;
+        }
+
+        ScriptContext context = new SimpleScriptContext();
+        Bindings bindings = engine.createBindings();
+        context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+        bindings.remove("print");
+        bindings.remove("load");
+        bindings.remove("loadWithNewGlobal");
+        bindings.remove("exit");
+        bindings.remove("quit");
+        builtinNames = new HashSet<>(Arrays.asList(((ScriptObjectMirror) bindings).getOwnKeys(true)));
+        bindings.put("require", (Function<String, Extension>) id -> getCurrentScript().require(id));
+        bindings.put(Watchdog.CHECK, (Runnable) watchdog::check);
+
+        // Code in the shared global, such as the finally.js helpers, sees whichever script is running on this thread as "script".
+        Object global = engine.eval("this", context);
+        ((JSObject) engine.eval("(function(global, host) {\n"
+                + "  Object.defineProperty(global, 'script', { get: function() { return host.getCurrentScript(); } });\n"
+                + "})", context)).call(null, global, this);
+        try {
+            engine.invokeMethod(bindings.get("Object"), "bindProperties", global, NashornBukkit.getInstance().getServer());
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+        }
+        importer.install(context);
+
+        sharedContext = context;
+        return sharedContext;
+    }
+
+    synchronized List<String> getScopeNames(Collection<String> boundNames) {
+        if (scopeNames == null) {
+            List<String> names = new ArrayList<>();
+            for (String name : boundNames) {
+                if (!builtinNames.contains(name) && !OBJECT_MEMBERS.contains(name) && !name.equals("script") && !name.equals("require")) {
+                    names.add(name);
+                }
+            }
+            Collections.sort(names);
+            scopeNames = Collections.unmodifiableList(names);
+        }
+        return scopeNames;
+    }
+
+    void evalSharedExtension(Script script, Extension extension) throws IOException, ScriptException {
+        if (sharedExtensionsBeingInstalled.contains(extension.getId())) {
+            throw new UnsupportedOperationException();
+        }
+
+        if (sharedExtensions.contains(extension.getId())) {
+            return;
+        }
+
+        sharedExtensionsBeingInstalled.add(extension.getId());
+        try {
+            extension.prepare();
+
+            Script previous = enter(script);
+            try {
+                extension.getCompiled().eval(getSharedContext());
+            } finally {
+                exit(previous);
+            }
+            sharedExtensions.add(extension.getId());
+        } finally {
+            sharedExtensionsBeingInstalled.remove(extension.getId());
+        }
+    }
+
+    public Script getCurrentScript() {
+        return currentScript.get();
+    }
+
+    public Script enter(Script script) {
+        Script previous = currentScript.get();
+        currentScript.set(script);
+        return previous;
+    }
+
+    public void exit(Script previous) {
+        currentScript.set(previous);
+    }
+
+    public Path getScriptDirectory() {
+        return scriptDirectory;
     }
 
     public ScriptEngine getEngine() {
@@ -138,11 +409,74 @@ public class Host {
         return loadedScripts;
     }
 
+    public Map<String, Script> getScripts() {
+        return loadedScripts;
+    }
+
     public BukkitImporter getImporter() {
         return importer;
     }
 
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    public EventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    public TickScheduler getTickScheduler() {
+        return tickScheduler;
+    }
+
+    public WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    public Watchdog getWatchdog() {
+        return watchdog;
+    }
+
+    public StoreManager getStoreManager() {
+        return storeManager;
+    }
+
+    public SnapshotManager getSnapshotManager() {
+        return snapshotManager;
+    }
+
+    public EditQueue getEditQueue() {
+        return editQueue;
+    }
+
+    public PlayerIndex getPlayerIndex() {
+        return playerIndex;
+    }
+
+    public StartupTrace getStartupTrace() {
+        return startupTrace;
+    }
+
+    public Path getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public ScriptCache getScriptCache() {
+        return scriptCache;
+    }
+
     public void onDisable() {
-        loadedScripts.values().forEach(Script::disable);
+        loadedScripts.values().forEach(Script::unload);
+        loadedScripts.clear();
+        eventDispatcher.clear();
+        tickScheduler.stop();
+        workerPool.stop();
+        watchdog.stop();
+        storeManager.close();
+        snapshotManager.stop();
+        editQueue.stop();
+        playerIndex.stop();
+        sharedContext = null;
+        sharedExtensions.clear();
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import jdk.nashorn.internal.ir.Block;
+import jdk.nashorn.internal.ir.ForNode;
+import jdk.nashorn.internal.ir.FunctionNode;
+import jdk.nashorn.internal.ir.LexicalContext;
+import jdk.nashorn.internal.ir.LoopNode;
+import jdk.nashorn.internal.ir.WhileNode;
+import jdk.nashorn.internal.ir.visitor.NodeVisitor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Rewrites a source so every loop body starts with a call, which lets the {@link Watchdog} stop a loop that never
+ * calls out. Only text on existing lines is added, so line numbers stay the same.
+ */
+final class LoopGuard {
+
+    private LoopGuard() {
+    }
+
+    /**
+     * @param call a statement, such as {@code "check();"}
+     * @return the rewritten source, or the source as is if it does not parse
+     */
+    static String instrument(String name, String code, String call) {
+        FunctionNode program = ScriptParser.parse(name, code);
+        if (program == null) {
+            return code;
+        }
+
+        List<Insertion> insertions = new ArrayList<>();
+        program.accept(new NodeVisitor<LexicalContext>(new LexicalContext()) {
+            @Override
+            public boolean enterForNode(ForNode forNode) {
+                guard(forNode);
+                return true;
+            }
+
+            @Override
+            public boolean enterWhileNode(WhileNode whileNode) {
+                guard(whileNode);
+                return true;
+            }
+
+            private void guard(LoopNode loop) {
+                Block body = loop.getBody();
+                int start = body.getStart();
+                int finish = body.getFinish();
+                if (start < code.length() && code.charAt(start) == '{') {
+                    insertions.add(new Insertion(start + 1, false, call));
+                } else if (start == finish) {
+                    // An empty statement, as in "while (poll());".
+                    insertions.add(new Insertion(start, false, "{" + call + "}"));
+                } else {
+                    insertions.add(new Insertion(start, false, "{" + call));
+                    insertions.add(new Insertion(finish, true, "}"));
+                }
+            }
+        });
+        if (insertions.isEmpty()) {
+            return code;
+        }
+
+        // Where one body ends and another starts, the closing brace goes first.
+        insertions.sort(Comparator.comparingInt((Insertion insertion) -> insertion.position).thenComparing(insertion -> !insertion.closing));
+        StringBuilder builder = new StringBuilder(code.length() + insertions.size() * (call.length() + 2));
+        int position = 0;
+        for (Insertion insertion : insertions) {
+            builder.append(code, position, insertion.position).append(insertion.text);
+            position = insertion.position;
+        }
+        return builder.append(code, position, code.length()).toString();
+    }
+
+    private static class Insertion {
+        private int position;
+        private boolean closing;
+        private String text;
+
+        private Insertion(int position, boolean closing, String text) {
+            this.position = position;
+            this.closing = closing;
+            this.text = text;
+        }
+    }
+}
@@ -26,30 +26,49 @@ package me.finalchild.nashornbukkit.script;
 
 import jdk.internal.dynalink.beans.StaticClass;
 import jdk.nashorn.api.scripting.JSObject;
+import jdk.nashorn.api.scripting.NashornException;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import me.finalchild.nashornbukkit.NashornBukkit;
-import me.finalchild.nashornbukkit.util.BukkitImporter;
+import me.finalchild.nashornbukkit.command.CommandNode;
+import me.finalchild.nashornbukkit.profile.HandlerStats;
+import me.finalchild.nashornbukkit.profile.Profiler;
+import me.finalchild.nashornbukkit.profile.StartupTrace;
+import me.finalchild.nashornbukkit.snapshot.EntitySnapshot;
+import me.finalchild.nashornbukkit.snapshot.PlayersSnapshot;
+import me.finalchild.nashornbukkit.snapshot.RegionSnapshot;
+import me.finalchild.nashornbukkit.store.ScriptStore;
 import me.finalchild.nashornbukkit.util.CommandUtil;
 import me.finalchild.nashornbukkit.util.ScriptExceptionLogger;
 import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
 import org.bukkit.event.Event;
 import org.bukkit.event.EventPriority;
-import org.bukkit.event.Listener;
 import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitScheduler;
 import org.bukkit.scheduler.BukkitTask;
 
 import javax.script.*;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,24 +84,47 @@ public class Script {
     private Map<String, Extension> installedExtensions = new HashMap<>();
     private Map<String, Extension> extensionsBeingInstalled = new HashMap<>();
 
-    private Listener listener;
+    private volatile CompiledScript compiled;
+
+    private ScriptObjectMirror scope;
+    private Object sharedResult;
+
+    private List<Command> commands = new ArrayList<>();
+    private Map<Integer, BukkitTask> tasks = new ConcurrentHashMap<>();
+    private Set<CompletableFuture<Object>> futures = ConcurrentHashMap.newKeySet();
+    private Map<String, HandlerStats> stats = new ConcurrentHashMap<>();
+    private volatile boolean unloaded;
+    private volatile boolean warnedAsync;
+    private int taskPruneThreshold = 64;
 
     public Script(Host host, Path file) throws ScriptException {
         this.host = host;
         this.file = file;
 
-        String fileName = file.getFileName().toString();
-        id = fileName.substring(0, fileName.length() - 3);
+        id = getId(file);
         Logger logger = Logger.getLogger(getId(), null);
         logger.setParent(Bukkit.getServer().getLogger());
         logger.setLevel(Level.ALL);
         this.logger = logger;
 
+        if (host.isSharedGlobals()) {
+            // Only the thin scope object is per script; the global with the built-ins is shared.
+            context = host.getSharedContext();
+            scope = (ScriptObjectMirror) host.getEngine().eval("({})", context);
+            try {
+                ((Invocable) host.getEngine()).invokeMethod(context.getBindings(ScriptContext.ENGINE_SCOPE).get("Object"), "bindProperties", scope, this);
+            } catch (NoSuchMethodException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
         ScriptContext context = new SimpleScriptContext();
         Bindings bindings = getHost().getEngine().createBindings();
         context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
         bindings.put("script", this);
         bindings.put("require", (Function<String, Extension>) this::require);
+        bindings.put(Watchdog.CHECK, (Runnable) host.getWatchdog()::check);
         bindings.remove("print");
         bindings.remove("load");
         bindings.remove("loadWithNewGlobal");
@@ -96,23 +138,85 @@ public class Script {
         } catch (NoSuchMethodException e) {
             e.printStackTrace();
         }
+        host.getImporter().install(context);
 
         this.context = context;
+    }
+
+    static String getId(Path file) {
+        String fileName = file.getFileName().toString();
+        return fileName.substring(0, fileName.length() - 3);
+    }
+
+    public void prepare() throws IOException, ScriptException {
+        byte[] source = Files.readAllBytes(getFile());
+        if (scope != null) {
+            // Top-level declarations become locals of a function that receives this script's members as parameters.
+            // The prefix stays on the first line so line numbers still match the file.
+            String prefix = "(function(script, require, " + String.join(", ", getScopeNames()) + ") {";
+            String suffix = "\n;return typeof onDisable === 'function' ? onDisable : undefined;\n})";
+            compiled = getHost().getScriptCache().compile(getFile(), source, prefix, suffix);
+        } else {
+            compiled = getHost().getScriptCache().compile(getFile(), source);
+        }
+    }
 
-        listener = new Listener() {};
+    private List<String> getScopeNames() {
+        return getHost().getScopeNames(scope.keySet());
+    }
+
+    public boolean isPrepared() {
+        return compiled != null;
     }
 
     public Object eval() throws IOException, ScriptException {
-        require("finally");
+        if (!isPrepared()) {
+            prepare();
+        }
+
+        StartupTrace trace = getHost().getStartupTrace();
+        StartupTrace.Span span = trace.begin(getId(), "extensions");
+        try {
+            require("finally");
+        } finally {
+            trace.end(span);
+        }
 
-        BukkitImporter.importBukkit(this);
+        span = trace.begin(getId(), "eval");
+        Watchdog.Invocation invocation = getHost().getWatchdog().enter(this, "load", false);
+        try {
+            return evalCompiled();
+        } finally {
+            getHost().getWatchdog().exit(invocation);
+            trace.end(span);
+        }
+    }
+
+    private Object evalCompiled() throws ScriptException {
+        if (scope != null) {
+            List<String> names = getScopeNames();
+            Object[] arguments = new Object[names.size() + 2];
+            arguments[0] = this;
+            arguments[1] = (Function<String, Extension>) this::require;
+            for (int i = 0; i < names.size(); i++) {
+                arguments[i + 2] = scope.getMember(names.get(i));
+            }
+
+            JSObject function = (JSObject) compiled.eval(getContext());
+            Script previous = getHost().enter(this);
+            try {
+                sharedResult = function.call(null, arguments);
+            } catch (NashornException e) {
+                throw new ScriptException(e);
+            } finally {
+                getHost().exit(previous);
+            }
+            return sharedResult;
+        }
 
         Bindings bindings = getContext().getBindings(ScriptContext.ENGINE_SCOPE);
-        BufferedReader br2 = Files.newBufferedReader(getFile());
         bindings.put(ScriptEngine.FILENAME, getFile().getFileName());
-        Object result = getHost().getEngine().eval(br2, getContext());
-        br2.close();
-        return result;
+        return compiled.eval(getContext());
     }
 
     public Host getHost() {
@@ -148,15 +252,19 @@ public class Script {
             return;
         }
 
+        if (scope != null) {
+            getHost().evalSharedExtension(this, extension);
+            getInstalledExtensions().put(extension.getId(), extension);
+            return;
+        }
+
         extensionsBeingInstalled.put(extension.getId(), extension);
 
-        BukkitImporter.importBukkit(this, extension);
+        extension.prepare();
 
         Bindings bindings = getContext().getBindings(ScriptContext.ENGINE_SCOPE);
         bindings.put(ScriptEngine.FILENAME, extension.getFile().getFileName());
-        BufferedReader br = Files.newBufferedReader(extension.getFile());
-        getHost().getEngine().eval(br, getContext());
-        br.close();
+        extension.getCompiled().eval(getContext());
 
         extensionsBeingInstalled.remove(extension.getId());
         getInstalledExtensions().put(extension.getId(), extension);
@@ -177,124 +285,492 @@ public class Script {
     }
 
     public void disable() {
-        Object obj = getContext().getAttribute("onDisable", ScriptContext.ENGINE_SCOPE);
+        Object obj = scope != null ? sharedResult : getContext().getAttribute("onDisable", ScriptContext.ENGINE_SCOPE);
         if (obj instanceof JSObject) {
             JSObject jsobj = (JSObject) obj;
             if (jsobj.isFunction()) {
-                jsobj.call(null);
+                Script previous = getHost().enter(this);
+                try {
+                    jsobj.call(null);
+                } finally {
+                    getHost().exit(previous);
+                }
             }
         }
     }
 
-    public void on(StaticClass event, Consumer<Event> executor) {
-        on((Class<? extends Event>) event.getRepresentedClass(), executor, EventPriority.NORMAL);
+    public void unload() {
+        unloaded = true;
+        try {
+            disable();
+        } catch (RuntimeException e) {
+            ScriptExceptionLogger.log("Could not disable " + getId(), e);
+        }
+
+        getHost().getEventDispatcher().unregister(this);
+        getHost().getTickScheduler().cancel(this);
+        getHost().getEditQueue().cancel(this);
+        getHost().getProfiler().remove(getId());
+
+        for (Command command : commands) {
+            CommandUtil.unregister(command);
+        }
+        commands.clear();
+
+        for (BukkitTask task : tasks.values()) {
+            task.cancel();
+        }
+        tasks.clear();
+
+        for (CompletableFuture<Object> future : futures) {
+            future.cancel(false);
+        }
+        futures.clear();
+    }
+
+    public boolean isUnloaded() {
+        return unloaded;
+    }
+
+    private BukkitTask track(BukkitTask task) {
+        tasks.put(task.getTaskId(), task);
+        if (tasks.size() > taskPruneThreshold) {
+            BukkitScheduler scheduler = Bukkit.getScheduler();
+            tasks.values().removeIf(t -> !scheduler.isQueued(t.getTaskId()) && !scheduler.isCurrentlyRunning(t.getTaskId()));
+            taskPruneThreshold = Math.max(64, tasks.size() * 2);
+        }
+        return task;
     }
 
-    public void on(StaticClass event, Consumer<Event> executor, EventPriority eventPriority) {
-        on((Class<? extends Event>) event.getRepresentedClass(), executor, eventPriority);
+    /**
+     * Registers a handler, either a script function or a {@link Consumer} of the event. A script function gets a call
+     * site of its own ({@link EventInvoker}) instead of being adapted to a Consumer.
+     */
+    public void on(StaticClass event, Object handler) {
+        on((Class<? extends Event>) event.getRepresentedClass(), handler, EventPriority.NORMAL);
     }
 
-    public void on(Class<? extends Event> event, Consumer<Event> executor) {
-        on(event, executor, EventPriority.NORMAL);
+    public void on(StaticClass event, Object handler, EventPriority eventPriority) {
+        on((Class<? extends Event>) event.getRepresentedClass(), handler, eventPriority);
     }
 
-    public void on(Class<? extends Event> event, Consumer<Event> executor, EventPriority eventPriority) {
-        NashornBukkit.getInstance().getServer().getPluginManager().registerEvent(event, listener, eventPriority, (listener, event1) -> executor.accept(event1), NashornBukkit.getInstance());
+    public void on(Class<? extends Event> event, Object handler) {
+        on(event, handler, EventPriority.NORMAL);
+    }
+
+    public void on(Class<? extends Event> event, Object handler, EventPriority eventPriority) {
+        getHost().getEventDispatcher().register(this, event, eventPriority, toConsumer(handler));
+    }
+
+    /**
+     * Registers a handler that is only called for events matching the options. See {@link EventFilter} for the
+     * options, which are checked without entering the script.
+     */
+    public void on(StaticClass event, Object handler, Map<String, Object> options) {
+        @SuppressWarnings("unchecked")
+        Class<? extends Event> eventClass = (Class<? extends Event>) event.getRepresentedClass();
+        on(eventClass, handler, options);
+    }
+
+    /**
+     * With a {@code coalesce} option, the handler receives an array with the latest event of each key once every
+     * {@code window} ticks (default 1) instead of every event. See {@link EventCoalescer}.
+     */
+    public void on(Class<? extends Event> event, Object handler, Map<String, Object> options) {
+        EventPriority priority = EventFilter.getPriority(options);
+        Predicate<Event> filter = EventFilter.compile(event, options);
+        Object coalesce = options.get("coalesce");
+        if (coalesce == null) {
+            getHost().getEventDispatcher().register(this, event, priority, toConsumer(handler), filter);
+            return;
+        }
+
+        Object window = options.get("window");
+        long period = Math.max(1, window instanceof Number ? ((Number) window).longValue() : 1);
+        EventCoalescer coalescer = new EventCoalescer(EventCoalescer.getKey(event, coalesce.toString()));
+        Consumer<Event[]> batchHandler = toConsumer(handler);
+        getHost().getTickScheduler().schedule(this, "on " + event.getSimpleName() + " " + priority + " coalesced", () -> coalescer.flush(batchHandler), period, period);
+        getHost().getEventDispatcher().register(this, event, priority, coalescer::add, filter);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Consumer<T> toConsumer(Object handler) {
+        if (handler instanceof ScriptObjectMirror && ((ScriptObjectMirror) handler).isFunction()) {
+            return EventInvoker.create((ScriptObjectMirror) handler);
+        }
+        if (handler instanceof Consumer) {
+            return (Consumer<T>) handler;
+        }
+        throw new IllegalArgumentException("Not a function: " + handler);
     }
 
     public void onCommand(String name, BiFunction<CommandSender, String[], Boolean> executor) {
+        Profiler profiler = getHost().getProfiler();
+        HandlerStats stats = getStats("command /" + name);
         onCommand(name, new Command(name) {
             @Override
             public boolean execute(CommandSender sender, String commandLabel, String[] args) {
+                boolean profiling = profiler.isEnabled();
+                long allocated = profiling ? profiler.getAllocatedBytes() : 0;
+                long start = profiling ? System.nanoTime() : 0;
+                Watchdog.Invocation invocation = getHost().getWatchdog().enter(Script.this, stats.getHandler());
+                Script previous = getHost().enter(Script.this);
                 try {
                     return executor.apply(sender, args);
                 } catch (ClassCastException e) {
                     return true;
+                } finally {
+                    getHost().getWatchdog().exit(invocation);
+                    getHost().exit(previous);
+                    if (profiling) {
+                        profiler.record(stats, start, allocated);
+                    }
                 }
             }
         });
     }
 
+    /**
+     * Registers a command whose subcommands and argument types are declared on the returned node. Arguments are
+     * parsed and tab completed by the tree, so the executors receive typed values.
+     */
+    public CommandNode command(String name) {
+        CommandNode root = new CommandNode(name);
+        Profiler profiler = getHost().getProfiler();
+        HandlerStats stats = getStats("command /" + name);
+        onCommand(name, new Command(name) {
+            @Override
+            public boolean execute(CommandSender sender, String commandLabel, String[] args) {
+                boolean profiling = profiler.isEnabled();
+                long allocated = profiling ? profiler.getAllocatedBytes() : 0;
+                long start = profiling ? System.nanoTime() : 0;
+                Watchdog.Invocation invocation = getHost().getWatchdog().enter(Script.this, stats.getHandler());
+                Script previous = getHost().enter(Script.this);
+                try {
+                    return root.execute(sender, args);
+                } finally {
+                    getHost().getWatchdog().exit(invocation);
+                    getHost().exit(previous);
+                    if (profiling) {
+                        profiler.record(stats, start, allocated);
+                    }
+                }
+            }
+
+            @Override
+            public List<String> tabComplete(CommandSender sender, String alias, String[] args) {
+                return root.tabComplete(sender, args);
+            }
+        });
+        return root;
+    }
+
     public void onCommand(String name, Command command) {
         CommandUtil.register(name, command);
+        commands.add(command);
     }
 
+    /**
+     * Schedules a function on the {@link TickScheduler}. Its tasks have negative ids, which Bukkit's scheduler does not
+     * know, so cancel them with {@link BukkitTask#cancel()} or {@link #cancelTask(int)}. The same holds for the other
+     * sync variants taking a function.
+     */
     public BukkitTask runTask(Runnable runnable) {
-        return runTask(new BukkitRunnable() {
-            @Override
-            public void run() {
-                runnable.run();
-            }
-        });
+        return getHost().getTickScheduler().schedule(this, "runTask", runnable, 1, 0);
     }
 
     public BukkitTask runTask(BukkitRunnable bukkitRunnable) {
-        return bukkitRunnable.runTask(NashornBukkit.getInstance());
+        return track(bukkitRunnable.runTask(NashornBukkit.getInstance()));
     }
 
+    /**
+     * @deprecated runs script code on Bukkit's async pool in this script's global, which is not thread-safe. Use
+     * {@link #submit(JSObject, Object...)} or {@link #supplyAsync(JSObject, Object...)} instead.
+     */
+    @Deprecated
     public BukkitTask runTaskAsynchronously(Runnable runnable) {
+        Runnable profiled = wrap("runTaskAsynchronously", runnable);
         return runTaskAsynchronously(new BukkitRunnable() {
             @Override
             public void run() {
-                runnable.run();
+                try {
+                    profiled.run();
+                } finally {
+                    tasks.remove(getTaskId());
+                }
             }
         });
     }
 
+    /**
+     * @deprecated runs script code on Bukkit's async pool in this script's global, which is not thread-safe. Use
+     * {@link #submit(JSObject, Object...)} or {@link #supplyAsync(JSObject, Object...)} instead.
+     */
+    @Deprecated
     public BukkitTask runTaskAsynchronously(BukkitRunnable bukkitRunnable) {
-        return bukkitRunnable.runTaskAsynchronously(NashornBukkit.getInstance());
+        warnAsync("runTaskAsynchronously");
+        return track(bukkitRunnable.runTaskAsynchronously(NashornBukkit.getInstance()));
     }
 
     public BukkitTask runTaskLater(Runnable runnable, long delay) {
-        return runTaskLater(new BukkitRunnable() {
-            @Override
-            public void run() {
-                runnable.run();
-            }
-        }, delay);
+        return getHost().getTickScheduler().schedule(this, "runTaskLater", runnable, delay, 0);
     }
 
     public BukkitTask runTaskLater(BukkitRunnable bukkitRunnable, long delay) {
-        return bukkitRunnable.runTaskLater(NashornBukkit.getInstance(), delay);
+        return track(bukkitRunnable.runTaskLater(NashornBukkit.getInstance(), delay));
     }
 
+    /**
+     * @deprecated runs script code on Bukkit's async pool in this script's global, which is not thread-safe. Use
+     * {@link #submit(JSObject, Object...)} or {@link #supplyAsync(JSObject, Object...)} instead.
+     */
+    @Deprecated
     public BukkitTask runTaskLaterAsynchronously(Runnable runnable, long delay) {
+        Runnable profiled = wrap("runTaskLaterAsynchronously", runnable);
         return runTaskLaterAsynchronously(new BukkitRunnable() {
             @Override
             public void run() {
-                runnable.run();
+                try {
+                    profiled.run();
+                } finally {
+                    tasks.remove(getTaskId());
+                }
             }
         }, delay);
     }
 
+    /**
+     * @deprecated runs script code on Bukkit's async pool in this script's global, which is not thread-safe. Use
+     * {@link #submit(JSObject, Object...)} or {@link #supplyAsync(JSObject, Object...)} instead.
+     */
+    @Deprecated
     public BukkitTask runTaskLaterAsynchronously(BukkitRunnable bukkitRunnable, long delay) {
-        return bukkitRunnable.runTaskLaterAsynchronously(NashornBukkit.getInstance(), delay);
+        warnAsync("runTaskLaterAsynchronously");
+        return track(bukkitRunnable.runTaskLaterAsynchronously(NashornBukkit.getInstance(), delay));
     }
 
+    /**
+     * @param period as for Bukkit: a negative period runs the task once, and 0 runs it every tick
+     */
     public BukkitTask runTaskTimer(Runnable runnable, long delay, long period) {
-        return runTaskTimer(new BukkitRunnable() {
-            @Override
-            public void run() {
-                runnable.run();
-            }
-        }, delay, period);
+        return getHost().getTickScheduler().schedule(this, "runTaskTimer", runnable, delay, period < 0 ? 0 : Math.max(1, period));
     }
 
     public BukkitTask runTaskTimer(BukkitRunnable bukkitRunnable, long delay, long period) {
-        return bukkitRunnable.runTaskTimer(NashornBukkit.getInstance(), delay, period);
+        return track(bukkitRunnable.runTaskTimer(NashornBukkit.getInstance(), delay, period));
+    }
+
+    /**
+     * Cancels a task of this script by its id, whether it runs on the {@link TickScheduler}, whose ids are negative,
+     * or on Bukkit's scheduler. Must be called on the main thread.
+     */
+    public void cancelTask(int taskId) {
+        if (taskId < -1) {
+            getHost().getTickScheduler().cancel(this, taskId);
+        } else {
+            Bukkit.getScheduler().cancelTask(taskId);
+        }
     }
 
+    /**
+     * @deprecated runs script code on Bukkit's async pool in this script's global, which is not thread-safe. Use
+     * {@link #submit(JSObject, Object...)} or {@link #supplyAsync(JSObject, Object...)} instead.
+     */
+    @Deprecated
     public BukkitTask runTaskTimerAsynchronously(Runnable runnable, long delay, long period) {
+        Runnable profiled = wrap("runTaskTimerAsynchronously", runnable);
         return runTaskTimerAsynchronously(new BukkitRunnable() {
             @Override
             public void run() {
-                runnable.run();
+                profiled.run();
             }
         }, delay, period);
     }
 
+    /**
+     * @deprecated runs script code on Bukkit's async pool in this script's global, which is not thread-safe. Use
+     * {@link #submit(JSObject, Object...)} or {@link #supplyAsync(JSObject, Object...)} instead.
+     */
+    @Deprecated
     public BukkitTask runTaskTimerAsynchronously(BukkitRunnable bukkitRunnable, long delay, long period) {
-        return bukkitRunnable.runTaskTimerAsynchronously(NashornBukkit.getInstance(), delay, period);
+        warnAsync("runTaskTimerAsynchronously");
+        return track(bukkitRunnable.runTaskTimerAsynchronously(NashornBukkit.getInstance(), delay, period));
+    }
+
+    private void warnAsync(String method) {
+        if (!warnedAsync) {
+            warnedAsync = true;
+            logger.warning(method + " runs script code off the main thread in a global that is not thread-safe; use submit or supplyAsync instead");
+        }
+    }
+
+    /**
+     * Returns a persistent key-value store of this script. Stores of different scripts never share data.
+     */
+    public ScriptStore store(String name) throws IOException {
+        return getHost().getStoreManager().open(getId(), name);
+    }
+
+    /**
+     * Returns a new batch of block changes in a world. Changes are only made once {@link BlockEdit#apply()} is
+     * called, and are then spread over as many ticks as the edit budget needs.
+     */
+    public BlockEdit edit(World world) {
+        return new BlockEdit(this, world);
+    }
+
+    /**
+     * Returns the players within a radius of a location. Uses the host's index of player positions, so only the
+     * players near the location are looked at. Must be called on the main thread.
+     */
+    public Player[] findPlayersNear(Location center, double radius) {
+        return getHost().getPlayerIndex().getNearby(center.getWorld(), center.getX(), center.getY(), center.getZ(), radius);
+    }
+
+    public Player[] findPlayersNear(World world, double x, double y, double z, double radius) {
+        return getHost().getPlayerIndex().getNearby(world, x, y, z, radius);
+    }
+
+    /**
+     * Returns the players in a box between two corners, both inclusive. Must be called on the main thread.
+     */
+    public Player[] findPlayersIn(World world, double x1, double y1, double z1, double x2, double y2, double z2) {
+        return getHost().getPlayerIndex().getWithin(world, x1, y1, z1, x2, y2, z2);
+    }
+
+    /**
+     * Returns up to count players nearest to a location, nearest first. Must be called on the main thread.
+     */
+    public Player[] findNearestPlayers(Location center, int count) {
+        return getHost().getPlayerIndex().getNearest(center.getWorld(), center.getX(), center.getY(), center.getZ(), count);
+    }
+
+    public Player[] findNearestPlayers(World world, double x, double y, double z, int count) {
+        return getHost().getPlayerIndex().getNearest(world, x, y, z, count);
+    }
+
+    /**
+     * Returns an immutable snapshot of the online players, which can be read from any thread. Off the main thread it
+     * is the one taken at the start of the latest tick.
+     */
+    public PlayersSnapshot snapshotPlayers() {
+        return getHost().getSnapshotManager().getPlayers();
+    }
+
+    /**
+     * Returns an immutable snapshot of the entities of a world. Must be called on the main thread; async code can
+     * take one through {@link #supplySync(Supplier)}.
+     */
+    public List<EntitySnapshot> snapshotEntities(World world) {
+        return getHost().getSnapshotManager().captureEntities(world);
+    }
+
+    /**
+     * Returns an immutable snapshot of the blocks between two corners. Chunks that are not loaded are left out. Must
+     * be called on the main thread; async code can take one through {@link #supplySync(Supplier)}.
+     */
+    public RegionSnapshot snapshotRegion(World world, int x1, int y1, int z1, int x2, int y2, int z2) {
+        return getHost().getSnapshotManager().captureRegion(world, x1, y1, z1, x2, y2, z2);
+    }
+
+    /**
+     * Runs a function on a worker thread and completes the returned future with its result.
+     * <p>
+     * Unlike the asynchronous tasks, the function does not run in this script's global. It is re-evaluated from its
+     * source on a worker with its own engine, so it can only use its arguments, which are copied, and the standard
+     * built-ins; a function that uses variables of this script is rejected with an {@link IllegalArgumentException}.
+     * Use {@link #postToMain(Runnable)} to hand the result back to the main thread.
+     */
+    public CompletableFuture<Object> submit(JSObject function, Object... args) {
+        if (!function.isFunction()) {
+            throw new IllegalArgumentException("Not a function");
+        }
+        return track(getHost().getWorkerPool().submit(this, function.toString(), args));
+    }
+
+    /**
+     * Like {@link #submit(JSObject, Object...)}, but returns a promise that can continue on the main thread with
+     * {@link ScriptPromise#thenSync(Function)}.
+     */
+    public ScriptPromise supplyAsync(JSObject function, Object... args) {
+        return new ScriptPromise(this, submit(function, args));
+    }
+
+    /**
+     * Runs a function on the main thread during the next tick and returns a promise of its result. Safe to call from
+     * any thread, for example to take a snapshot from async code.
+     */
+    public ScriptPromise supplySync(Supplier<Object> supplier) {
+        return new ScriptPromise(this, CompletableFuture.supplyAsync(supplier, getMainExecutor("supplySync")));
+    }
+
+    CompletableFuture<Object> track(CompletableFuture<Object> future) {
+        futures.add(future);
+        future.whenComplete((result, throwable) -> futures.remove(future));
+        return future;
+    }
+
+    Executor getMainExecutor(String handler) {
+        TickScheduler scheduler = getHost().getTickScheduler();
+        return runnable -> scheduler.post(wrap(handler, runnable));
+    }
+
+    /**
+     * Runs the runnable on the main thread during the next tick. Safe to call from any thread.
+     */
+    public BukkitTask postToMain(Runnable runnable) {
+        return getHost().getTickScheduler().schedule(this, "postToMain", runnable, 1, 0);
+    }
+
+    /**
+     * Creates a sync task that is not scheduled yet. Arm it with {@link ScriptTask#arm(long)} whenever the work is
+     * due; the same task can be armed again after it ran, so scheduling it costs no allocation.
+     */
+    public ScriptTask task(Runnable runnable) {
+        return task(runnable, 0);
+    }
+
+    /**
+     * Creates a sync task that repeats every period ticks once armed, until it is cancelled.
+     */
+    public ScriptTask task(Runnable runnable, long period) {
+        return getHost().getTickScheduler().create(this, "task", runnable, period);
+    }
+
+    HandlerStats getStats(String handler) {
+        // get first, so the common case allocates neither a key nor a lambda.
+        HandlerStats handlerStats = stats.get(handler);
+        if (handlerStats == null) {
+            handlerStats = getHost().getProfiler().getStats(getId(), handler);
+            stats.put(handler, handlerStats);
+        }
+        return handlerStats;
+    }
+
+    void invoke(String handler, HandlerStats handlerStats, Runnable runnable) {
+        Profiler profiler = getHost().getProfiler();
+        Watchdog watchdog = getHost().getWatchdog();
+        boolean profiling = profiler.isEnabled();
+        long allocated = profiling ? profiler.getAllocatedBytes() : 0;
+        long start = profiling ? System.nanoTime() : 0;
+        Watchdog.Invocation invocation = watchdog.enter(this, handler);
+        Script previous = scope != null ? getHost().enter(this) : null;
+        try {
+            runnable.run();
+        } finally {
+            watchdog.exit(invocation);
+            if (scope != null) {
+                getHost().exit(previous);
+            }
+            if (profiling) {
+                profiler.record(handlerStats, start, allocated);
+            }
+        }
+    }
+
+    private Runnable wrap(String handler, Runnable runnable) {
+        HandlerStats handlerStats = getStats(handler);
+        return () -> invoke(handler, handlerStats, runnable);
     }
 
     @Override
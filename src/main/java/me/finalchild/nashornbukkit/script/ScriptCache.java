@@ -0,0 +1,132 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import com.google.common.hash.Hashing;
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ScriptCache {
+
+    private NashornScriptEngine engine;
+    private Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    private volatile boolean guardLoops;
+
+    public ScriptCache(NashornScriptEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Sets whether sources compiled from now on call {@link Watchdog#check()} at the start of every loop body.
+     */
+    public void setGuardLoops(boolean guardLoops) {
+        this.guardLoops = guardLoops;
+    }
+
+    public CompiledScript compile(Path file) throws IOException, ScriptException {
+        return compile(file, Files.readAllBytes(file));
+    }
+
+    public CompiledScript compile(Path file, byte[] source) throws ScriptException {
+        return compile(file, source, "", "");
+    }
+
+    public CompiledScript compile(Path file, byte[] source, String prefix, String suffix) throws ScriptException {
+        Path key = file.toAbsolutePath().normalize();
+        boolean guardLoops = this.guardLoops;
+        String hash = Hashing.sha256().newHasher()
+                .putString(prefix, StandardCharsets.UTF_8)
+                .putBytes(source)
+                .putString(suffix, StandardCharsets.UTF_8)
+                .putBoolean(guardLoops)
+                .hash().toString();
+
+        CompiledScript compiled = lookup(key, hash);
+        if (compiled == null) {
+            // Compiles exactly the bytes that were hashed, so a file rewritten meanwhile is not cached under the wrong
+            // hash. The sourceURL directive names the source after the file without touching the engine's context.
+            String code = prefix + new String(source, StandardCharsets.UTF_8) + suffix;
+            if (guardLoops) {
+                code = LoopGuard.instrument(file.getFileName().toString(), code, Watchdog.CHECK + "();");
+            }
+            code += "\n//# sourceURL=" + file.getFileName();
+            // Nashorn makes no promise that one engine can compile on several threads at once.
+            synchronized (engine) {
+                compiled = engine.compile(code);
+            }
+            entries.put(key, new Entry(hash, compiled));
+        }
+        return compiled;
+    }
+
+    private CompiledScript lookup(Path key, String hash) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.hash.equals(hash)) {
+            hits.incrementAndGet();
+            return entry.compiled;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void invalidate(Path file) {
+        entries.remove(file.toAbsolutePath().normalize());
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        private String hash;
+        private CompiledScript compiled;
+
+        private Entry(String hash, CompiledScript compiled) {
+            this.hash = hash;
+            this.compiled = compiled;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import jdk.nashorn.internal.ir.FunctionNode;
+import jdk.nashorn.internal.parser.Parser;
+import jdk.nashorn.internal.runtime.ErrorManager;
+import jdk.nashorn.internal.runtime.ScriptEnvironment;
+import jdk.nashorn.internal.runtime.Source;
+import jdk.nashorn.internal.runtime.options.Options;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Parses sources into Nashorn's syntax tree without compiling them. Positions in the tree are offsets into the source.
+ */
+final class ScriptParser {
+
+    private static final ScriptEnvironment ENVIRONMENT;
+
+    static {
+        Options options = new Options("nashorn");
+        options.process(new String[0]);
+        PrintWriter discard = new PrintWriter(new StringWriter());
+        ENVIRONMENT = new ScriptEnvironment(options, discard, discard);
+    }
+
+    private ScriptParser() {
+    }
+
+    /**
+     * Returns the tree of the source, or null if it has syntax errors, which are left for the compiler to report.
+     */
+    static FunctionNode parse(String name, String code) {
+        ErrorManager errors = new ErrorManager(new PrintWriter(new StringWriter()));
+        FunctionNode program = new Parser(ENVIRONMENT, Source.sourceFor(name, code), errors).parse();
+        return errors.hasErrors() ? null : program;
+    }
+}
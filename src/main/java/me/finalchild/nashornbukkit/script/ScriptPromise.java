@@ -0,0 +1,103 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import jdk.nashorn.api.scripting.JSObject;
+import me.finalchild.nashornbukkit.util.ScriptExceptionLogger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * A {@link CompletableFuture} with methods that choose which side runs the next step: {@code thenSync} on the main
+ * thread, {@code thenAsync} on a worker. Main thread steps are batched by the {@link TickScheduler}.
+ * <p>
+ * A step may return another promise or future, which is then waited for before the chain continues.
+ */
+public class ScriptPromise {
+
+    private Script script;
+    private CompletableFuture<Object> future;
+
+    ScriptPromise(Script script, CompletableFuture<Object> future) {
+        this.script = script;
+        this.future = script.track(future);
+    }
+
+    public ScriptPromise thenSync(Function<Object, Object> function) {
+        Executor main = script.getMainExecutor("thenSync");
+        return new ScriptPromise(script, future.thenComposeAsync(value -> unwrap(apply(function, value)), main));
+    }
+
+    public ScriptPromise thenAsync(JSObject function) {
+        return new ScriptPromise(script, future.thenCompose(value -> script.submit(function, value)));
+    }
+
+    public ScriptPromise catchSync(Function<Throwable, Object> function) {
+        Executor main = script.getMainExecutor("catchSync");
+        return new ScriptPromise(script, future.handleAsync((value, throwable) -> throwable == null ? value : apply(function, cause(throwable)), main).thenCompose(ScriptPromise::unwrap));
+    }
+
+    public CompletableFuture<Object> getFuture() {
+        return future;
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    public boolean cancel() {
+        return future.cancel(false);
+    }
+
+    private <T> Object apply(Function<T, Object> function, T value) {
+        try {
+            return function.apply(value);
+        } catch (Throwable t) {
+            ScriptExceptionLogger.log("A promise step of " + script.getId() + " failed", t);
+            throw t;
+        }
+    }
+
+    private static CompletableFuture<Object> unwrap(Object value) {
+        if (value instanceof ScriptPromise) {
+            return ((ScriptPromise) value).future;
+        }
+        if (value instanceof CompletableFuture) {
+            return ((CompletableFuture<?>) value).thenApply(Function.identity());
+        }
+        return CompletableFuture.completedFuture(value);
+    }
+
+    private static Throwable cause(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException) && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.profile.HandlerStats;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * A sync task of a script, run by the {@link TickScheduler}.
+ * <p>
+ * A task can be armed again once it has run or been cancelled, so a script that keeps scheduling the same work can
+ * create the task once with {@link Script#task(Runnable)} and reuse it instead of allocating a new one each time.
+ */
+public class ScriptTask implements BukkitTask {
+
+    private Script script;
+    private String handler;
+    private HandlerStats stats;
+    private Runnable runnable;
+    private int taskId;
+
+    private long period;
+    volatile long delay;
+    long nextTick;
+    // Whether the task is in a queue of the scheduler. Only used on the main thread.
+    boolean queued;
+
+    private volatile boolean cancelled;
+
+    ScriptTask(Script script, String handler, Runnable runnable, int taskId, long period) {
+        this.script = script;
+        this.handler = handler;
+        this.stats = script.getStats(handler);
+        this.runnable = runnable;
+        this.taskId = taskId;
+        this.period = period;
+    }
+
+    public Script getScript() {
+        return script;
+    }
+
+    void run() {
+        script.invoke(handler, stats, runnable);
+    }
+
+    /**
+     * Schedules the task to run in the next tick. See {@link #arm(long)}.
+     */
+    public ScriptTask arm() {
+        return arm(1);
+    }
+
+    /**
+     * Schedules the task to run after the given number of ticks, and then every period ticks if it repeats. If the
+     * task is still scheduled, it is moved to the new time instead. Must be called on the main thread.
+     */
+    public ScriptTask arm(long delay) {
+        script.getHost().getTickScheduler().arm(this, delay);
+        return this;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    public boolean isRepeating() {
+        return period > 0;
+    }
+
+    @Override
+    public int getTaskId() {
+        return taskId;
+    }
+
+    @Override
+    public Plugin getOwner() {
+        return NashornBukkit.getInstance();
+    }
+
+    @Override
+    public boolean isSync() {
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+}
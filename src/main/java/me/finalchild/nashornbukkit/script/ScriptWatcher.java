@@ -0,0 +1,149 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.util.ScriptExceptionLogger;
+
+import javax.script.ScriptException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class ScriptWatcher implements Runnable {
+
+    // Editors often write a file in several steps, so a script is reloaded once its file has not changed for this long.
+    private static final long DEBOUNCE_MILLIS = 500;
+
+    private Host host;
+    private Path directory;
+    private WatchService watchService;
+    private Thread thread;
+
+    // The time each changed script is due for a reload at, in the order the scripts were first changed.
+    private Map<String, Long> pending = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    public ScriptWatcher(Host host, Path directory) {
+        this.host = host;
+        this.directory = directory;
+    }
+
+    public void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        thread = new Thread(this, "NashornBukkit Script Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        continue;
+                    }
+                    String fileName = event.context().toString();
+                    if (fileName.endsWith(".js")) {
+                        changed(fileName.substring(0, fileName.length() - 3));
+                    }
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped.
+        }
+    }
+
+    private synchronized void changed(String id) {
+        // Every change pushes the reload back, so a file that is still being written is not read half way.
+        pending.put(id, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS));
+        if (!flushScheduled) {
+            flushScheduled = true;
+            schedule(DEBOUNCE_MILLIS);
+        }
+    }
+
+    private void schedule(long millis) {
+        long ticks = Math.max(1, (millis + 49) / 50);
+        NashornBukkit.getInstance().getServer().getScheduler().runTaskLater(NashornBukkit.getInstance(), this::flush, ticks);
+    }
+
+    private void flush() {
+        List<String> ids = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            long next = Long.MAX_VALUE;
+            for (Iterator<Map.Entry<String, Long>> iterator = pending.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, Long> entry = iterator.next();
+                if (entry.getValue() - now <= 0) {
+                    ids.add(entry.getKey());
+                    iterator.remove();
+                } else {
+                    next = Math.min(next, entry.getValue() - now);
+                }
+            }
+            if (pending.isEmpty()) {
+                flushScheduled = false;
+            } else {
+                schedule(TimeUnit.NANOSECONDS.toMillis(next));
+            }
+        }
+        for (String id : ids) {
+            NashornBukkit.getInstance().getLogger().info("Reloading script " + id);
+            try {
+                host.reloadScript(id);
+            } catch (IOException | IllegalArgumentException e) {
+                e.printStackTrace();
+            } catch (ScriptException e) {
+                ScriptExceptionLogger.log(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.util.ScriptExceptionLogger;
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TickScheduler implements Runnable {
+
+    private static final Comparator<ScriptTask> ORDER = Comparator.<ScriptTask>comparingLong(task -> task.nextTick).thenComparing(ScriptTask::getTaskId, Comparator.reverseOrder());
+
+    private long budgetNanos;
+    private BukkitTask bukkitTask;
+
+    // Bukkit hands out positive ids and uses -1 for unscheduled tasks, so ours count down from -2.
+    private AtomicInteger nextTaskId = new AtomicInteger(-2);
+    private Queue<ScriptTask> incoming = new ConcurrentLinkedQueue<>();
+    private Queue<Runnable> continuations = new ConcurrentLinkedQueue<>();
+    // Keyed by identity, as a reloaded script equals the one it replaces.
+    private Map<Script, Queue<ScriptTask>> queues = new IdentityHashMap<>();
+    private List<Queue<ScriptTask>> rotation = new ArrayList<>();
+    private int cursor;
+
+    private long tick;
+
+    private long ticks;
+    private long tasksRun;
+    private long continuationsRun;
+    private long deferredTasks;
+    private long overrunTicks;
+    private long totalNanos;
+    private long maxTickNanos;
+
+    public void start(long budgetNanos) {
+        this.budgetNanos = budgetNanos;
+        if (bukkitTask == null) {
+            bukkitTask = NashornBukkit.getInstance().getServer().getScheduler().runTaskTimer(NashornBukkit.getInstance(), this, 1, 1);
+        }
+    }
+
+    public void stop() {
+        if (bukkitTask != null) {
+            bukkitTask.cancel();
+            bukkitTask = null;
+        }
+        incoming.clear();
+        continuations.clear();
+        queues.clear();
+        rotation.clear();
+    }
+
+    public ScriptTask schedule(Script script, String handler, Runnable runnable, long delay, long period) {
+        ScriptTask task = create(script, handler, runnable, period);
+        arm(task, delay);
+        return task;
+    }
+
+    /**
+     * Creates a task without scheduling it. See {@link ScriptTask#arm(long)}.
+     */
+    public ScriptTask create(Script script, String handler, Runnable runnable, long period) {
+        ScriptTask task = new ScriptTask(script, handler, runnable, nextTaskId.getAndDecrement(), period);
+        task.setCancelled(true);
+        return task;
+    }
+
+    void arm(ScriptTask task, long delay) {
+        if (task.getScript().isUnloaded()) {
+            return;
+        }
+        task.delay = Math.max(1, delay);
+        task.setCancelled(false);
+        if (Bukkit.isPrimaryThread()) {
+            // Skips the hand-off queue, whose nodes would be the only allocation of arming a task again.
+            enqueue(task, tick);
+        } else {
+            incoming.add(task);
+        }
+    }
+
+    /**
+     * Queues a continuation for the next tick. All continuations are run together in one pass at the start of the
+     * tick, so handing many results back to the main thread costs no more than handing back one.
+     */
+    public void post(Runnable continuation) {
+        continuations.add(continuation);
+    }
+
+    public void cancel(Script script) {
+        for (ScriptTask task : incoming) {
+            if (task.getScript() == script) {
+                task.cancel();
+            }
+        }
+        Queue<ScriptTask> queue = queues.remove(script);
+        if (queue != null) {
+            for (ScriptTask task : queue) {
+                task.cancel();
+                task.queued = false;
+            }
+            rotation.remove(queue);
+        }
+    }
+
+    /**
+     * Cancels one task of a script by its id. Must be called on the main thread.
+     */
+    public void cancel(Script script, int taskId) {
+        for (ScriptTask task : incoming) {
+            if (task.getTaskId() == taskId) {
+                task.cancel();
+            }
+        }
+        Queue<ScriptTask> queue = queues.get(script);
+        if (queue != null) {
+            for (ScriptTask task : queue) {
+                if (task.getTaskId() == taskId) {
+                    task.cancel();
+                }
+            }
+        }
+    }
+
+    private void enqueue(ScriptTask task, long base) {
+        Queue<ScriptTask> queue = queues.get(task.getScript());
+        if (queue == null) {
+            queue = new PriorityQueue<>(ORDER);
+            queues.put(task.getScript(), queue);
+            rotation.add(queue);
+        }
+        if (task.queued) {
+            // Armed again while it was still waiting, so it moves to the new time.
+            queue.remove(task);
+        }
+        task.nextTick = base + task.delay;
+        task.queued = true;
+        queue.add(task);
+    }
+
+    @Override
+    public void run() {
+        tick++;
+        long start = System.nanoTime();
+
+        ScriptTask added;
+        while ((added = incoming.poll()) != null) {
+            if (!added.isCancelled()) {
+                // Delays are relative to the tick in which the task was scheduled, which is the one before this.
+                enqueue(added, tick - 1);
+            }
+        }
+
+        // Only the continuations queued before this pass, so ones posted by a continuation wait for the next tick.
+        int posted = continuations.size();
+        for (int i = 0; i < posted; i++) {
+            Runnable continuation = continuations.poll();
+            if (continuation == null) {
+                break;
+            }
+            try {
+                continuation.run();
+            } catch (Throwable t) {
+                ScriptExceptionLogger.log("Could not run a continuation", t);
+            }
+            continuationsRun++;
+        }
+
+        int size = rotation.size();
+        int ran = 0;
+        boolean ranAny = true;
+        boolean outOfBudget = false;
+        while (ranAny && !outOfBudget) {
+            ranAny = false;
+            for (int i = 0; i < size; i++) {
+                // At least one task runs every tick, so a tiny budget slows scripts down instead of stalling them.
+                if (budgetNanos > 0 && ran > 0 && System.nanoTime() - start >= budgetNanos) {
+                    outOfBudget = true;
+                    break;
+                }
+                Queue<ScriptTask> queue = rotation.get((cursor + i) % size);
+                ScriptTask task = pollDue(queue);
+                if (task == null) {
+                    continue;
+                }
+                ranAny = true;
+                ran++;
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    ScriptExceptionLogger.log("Could not run a task of " + task.getScript().getId(), t);
+                }
+                if (task.isRepeating() && !task.isCancelled() && !task.queued) {
+                    task.nextTick = tick + task.getPeriod();
+                    task.queued = true;
+                    queue.add(task);
+                }
+            }
+        }
+        if (size > 0) {
+            cursor = (cursor + 1) % size;
+        }
+
+        if (outOfBudget) {
+            for (Queue<ScriptTask> queue : rotation) {
+                for (ScriptTask task : queue) {
+                    if (task.nextTick <= tick && !task.isCancelled()) {
+                        deferredTasks++;
+                    }
+                }
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        ticks++;
+        tasksRun += ran;
+        totalNanos += elapsed;
+        maxTickNanos = Math.max(maxTickNanos, elapsed);
+        if (budgetNanos > 0 && elapsed > budgetNanos) {
+            overrunTicks++;
+        }
+    }
+
+    private ScriptTask pollDue(Queue<ScriptTask> queue) {
+        ScriptTask task;
+        while ((task = queue.peek()) != null && task.isCancelled()) {
+            queue.poll();
+            task.queued = false;
+        }
+        if (task == null || task.nextTick > tick) {
+            return null;
+        }
+        queue.poll();
+        task.queued = false;
+        return task;
+    }
+
+    public long getBudgetNanos() {
+        return budgetNanos;
+    }
+
+    public int getPendingTasks() {
+        int pending = incoming.size() + continuations.size();
+        for (Queue<ScriptTask> queue : rotation) {
+            pending += queue.size();
+        }
+        return pending;
+    }
+
+    public List<String> format() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Budget per tick: " + (budgetNanos > 0 ? String.format("%.2f ms", budgetNanos / (double) TimeUnit.MILLISECONDS.toNanos(1)) : "unlimited"));
+        lines.add("Ticks: " + ticks + ", tasks run: " + tasksRun + ", continuations run: " + continuationsRun + ", pending: " + getPendingTasks());
+        lines.add("Deferred task-ticks: " + deferredTasks + ", ticks over budget: " + overrunTicks);
+        lines.add(String.format("Mean tick: %.3f ms, max tick: %.3f ms",
+                ticks == 0 ? 0 : totalNanos / (double) ticks / TimeUnit.MILLISECONDS.toNanos(1),
+                maxTickNanos / (double) TimeUnit.MILLISECONDS.toNanos(1)));
+        return lines;
+    }
+
+    public void resetStats() {
+        ticks = 0;
+        tasksRun = 0;
+        continuationsRun = 0;
+        deferredTasks = 0;
+        overrunTicks = 0;
+        totalNanos = 0;
+        maxTickNanos = 0;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import me.finalchild.nashornbukkit.util.ScriptExceptionLogger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Enforces per-invocation limits on script code: event handlers, tasks, commands and promise steps.
+ * <p>
+ * Every invocation is measured with the thread's CPU time and, if supported, its allocation counter. An invocation
+ * over budget is reported, and a script that is reported too often is unloaded.
+ * <p>
+ * A thread cannot be stopped safely at an arbitrary point, so the abort limit stops script code at points of its own:
+ * a separate thread marks an invocation that keeps the main thread busy past it, and from then on every loop of that
+ * invocation fails at its next iteration, as while the limit is on every loop body starts with a call to
+ * {@link #check()}, and every new invocation of the script fails instead of starting. The script is unloaded as soon
+ * as the main thread gets back to the scheduler. Recursion without loops is left to the stack limit.
+ */
+public class Watchdog implements Runnable {
+
+    /**
+     * The name under which {@link #check()} is bound in the global of every script.
+     */
+    public static final String CHECK = "__nashornbukkit_check__";
+
+    private static final long POLL_MILLIS = 20;
+
+    private Host host;
+    private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private com.sun.management.ThreadMXBean allocations;
+
+    private volatile boolean enabled;
+    private long cpuBudgetNanos;
+    private long allocationBudgetBytes;
+    private long abortNanos;
+    private int strikes;
+
+    private Thread mainThread;
+    private volatile Invocation mainInvocation;
+    private Thread poller;
+
+    private Map<String, AtomicInteger> violations = new ConcurrentHashMap<>();
+    // Keyed by identity, as a reloaded script equals the one it replaces.
+    private Set<Script> aborted = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    public Watchdog(Host host) {
+        this.host = host;
+        if (threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            allocations = (com.sun.management.ThreadMXBean) threads;
+        }
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public synchronized void start(long cpuBudgetNanos, long allocationBudgetBytes, int strikes, long abortNanos) {
+        if (!threads.isCurrentThreadCpuTimeSupported()) {
+            ScriptExceptionLogger.log("The watchdog is disabled because this JVM cannot measure thread CPU time");
+            return;
+        }
+        if (!threads.isThreadCpuTimeEnabled()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        if (allocationBudgetBytes > 0 && allocations != null && this.allocationBudgetBytes == 0) {
+            host.getProfiler().startAllocationTracking();
+        }
+        this.cpuBudgetNanos = cpuBudgetNanos;
+        this.allocationBudgetBytes = allocations != null ? allocationBudgetBytes : 0;
+        this.strikes = strikes;
+        this.abortNanos = abortNanos;
+        mainThread = Thread.currentThread();
+        host.getScriptCache().setGuardLoops(abortNanos > 0);
+        enabled = true;
+
+        if (abortNanos > 0 && poller == null) {
+            poller = new Thread(this, "NashornBukkit Watchdog");
+            poller.setDaemon(true);
+            poller.start();
+        }
+    }
+
+    public synchronized void stop() {
+        enabled = false;
+        host.getScriptCache().setGuardLoops(false);
+        if (allocationBudgetBytes > 0) {
+            host.getProfiler().stopAllocationTracking();
+            allocationBudgetBytes = 0;
+        }
+        mainInvocation = null;
+        if (poller != null) {
+            poller.interrupt();
+            poller = null;
+        }
+        violations.clear();
+        aborted.clear();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns whether the script ran past the abort limit and is waiting to be unloaded.
+     */
+    public boolean isAborted(Script script) {
+        return !aborted.isEmpty() && aborted.contains(script);
+    }
+
+    /**
+     * Starts measuring an invocation. Returns null when the watchdog is off, which {@link #exit(Invocation)} accepts.
+     *
+     * @throws IllegalStateException if the script ran past the abort limit
+     */
+    public Invocation enter(Script script, String handler) {
+        return enter(script, handler, true);
+    }
+
+    /**
+     * @param budgeted false to only guard the invocation with the abort limit, as for loading a script, whose first
+     *                 run includes compiling it
+     */
+    public Invocation enter(Script script, String handler, boolean budgeted) {
+        if (!enabled) {
+            return null;
+        }
+        if (isAborted(script)) {
+            throw new IllegalStateException(script.getId() + " ran past the abort limit and is being unloaded");
+        }
+        Thread thread = Thread.currentThread();
+        boolean main = thread == mainThread;
+        Invocation invocation = new Invocation(script, handler, main ? mainInvocation : null, main, budgeted,
+                threads.getCurrentThreadCpuTime(),
+                allocationBudgetBytes > 0 ? allocations.getThreadAllocatedBytes(thread.getId()) : 0);
+        if (main) {
+            mainInvocation = invocation;
+        }
+        return invocation;
+    }
+
+    /**
+     * Called at the start of every loop body of script code compiled while the abort limit is on.
+     *
+     * @throws IllegalStateException if the invocation running on the main thread ran past the abort limit
+     */
+    public void check() {
+        Invocation invocation = mainInvocation;
+        if (invocation != null && invocation.aborted && Thread.currentThread() == mainThread) {
+            throw new IllegalStateException(invocation.script.getId() + " ran past the abort limit and is being unloaded");
+        }
+    }
+
+    public void exit(Invocation invocation) {
+        if (invocation == null) {
+            return;
+        }
+        if (invocation.main) {
+            mainInvocation = invocation.previous;
+        }
+
+        long cpu = threads.getCurrentThreadCpuTime() - invocation.startCpu;
+        long allocated = allocationBudgetBytes > 0 ? allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - invocation.startAllocated : 0;
+        if (invocation.previous != null) {
+            // Whatever an invocation triggers, such as an event, is charged to the handler of that event only.
+            invocation.previous.childCpu += cpu;
+            invocation.previous.childAllocated += allocated;
+        }
+        cpu -= invocation.childCpu;
+        allocated -= invocation.childAllocated;
+
+        if (invocation.aborted) {
+            ScriptExceptionLogger.log(describe(invocation) + " ran past the abort limit, using " + formatMillis(cpu) + " of CPU time");
+        } else if (!invocation.budgeted) {
+            return;
+        } else if (cpu > cpuBudgetNanos) {
+            violate(invocation, formatMillis(cpu) + " of CPU time, budget " + formatMillis(cpuBudgetNanos));
+        } else if (allocationBudgetBytes > 0 && allocated > allocationBudgetBytes) {
+            violate(invocation, (allocated >> 10) + " KiB allocated, budget " + (allocationBudgetBytes >> 10) + " KiB");
+        }
+    }
+
+    private void violate(Invocation invocation, String usage) {
+        int count = violations.computeIfAbsent(invocation.script.getId(), id -> new AtomicInteger()).incrementAndGet();
+        ScriptExceptionLogger.log(describe(invocation) + " used " + usage + (strikes > 0 ? " (" + count + "/" + strikes + ")" : ""));
+        if (strikes > 0 && count >= strikes) {
+            disable(invocation.script);
+        }
+    }
+
+    private void disable(Script script) {
+        host.getTickScheduler().post(() -> {
+            violations.remove(script.getId());
+            aborted.remove(script);
+            if (host.getScript(script.getId()).orElse(null) == script) {
+                ScriptExceptionLogger.log("Unloading " + script.getId() + " because it exceeded its budget");
+                host.unloadScript(script.getId());
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Invocation invocation = mainInvocation;
+            if (invocation == null) {
+                continue;
+            }
+            long cpu = threads.getThreadCpuTime(mainThread.getId()) - invocation.startCpu;
+            if (cpu < abortNanos) {
+                continue;
+            }
+            if (!invocation.aborted) {
+                invocation.aborted = true;
+                aborted.add(invocation.script);
+                // Runs once the main thread is back at the scheduler, after the invocation has returned.
+                disable(invocation.script);
+            }
+        }
+    }
+
+    public List<String> format() {
+        List<String> lines = new ArrayList<>();
+        if (!enabled) {
+            lines.add("The watchdog is disabled.");
+            return lines;
+        }
+        lines.add("CPU budget: " + formatMillis(cpuBudgetNanos)
+                + ", allocation budget: " + (allocationBudgetBytes > 0 ? (allocationBudgetBytes >> 10) + " KiB" : "none")
+                + ", strikes: " + (strikes > 0 ? strikes : "unlimited")
+                + ", abort after: " + (abortNanos > 0 ? formatMillis(abortNanos) : "never"));
+        new TreeMap<>(violations).forEach((script, count) -> lines.add(script + ": " + count + " over budget"));
+        return lines;
+    }
+
+    private static String describe(Invocation invocation) {
+        return invocation.script.getId() + " (" + invocation.handler + ")";
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.2f ms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    public static class Invocation {
+
+        private Script script;
+        private String handler;
+        private Invocation previous;
+        private boolean main;
+        private boolean budgeted;
+        private long startCpu;
+        private long startAllocated;
+        private long childCpu;
+        private long childAllocated;
+        private volatile boolean aborted;
+
+        private Invocation(Script script, String handler, Invocation previous, boolean main, boolean budgeted, long startCpu, long startAllocated) {
+            this.script = script;
+            this.handler = handler;
+            this.previous = previous;
+            this.main = main;
+            this.budgeted = budgeted;
+            this.startCpu = startCpu;
+            this.startAllocated = startAllocated;
+        }
+    }
+}
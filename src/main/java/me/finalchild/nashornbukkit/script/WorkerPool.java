@@ -0,0 +1,289 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.script;
+
+import jdk.nashorn.api.scripting.JSObject;
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import jdk.nashorn.internal.ir.CatchNode;
+import jdk.nashorn.internal.ir.FunctionNode;
+import jdk.nashorn.internal.ir.IdentNode;
+import jdk.nashorn.internal.ir.LexicalContext;
+import jdk.nashorn.internal.ir.VarNode;
+import jdk.nashorn.internal.ir.visitor.NodeVisitor;
+import me.finalchild.nashornbukkit.NashornBukkit;
+import me.finalchild.nashornbukkit.profile.HandlerStats;
+import me.finalchild.nashornbukkit.profile.Profiler;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs script functions off the main thread.
+ * <p>
+ * Every worker thread owns its own engine and global, so nothing a worker evaluates is ever touched by two threads.
+ * Functions are sent by source and therefore cannot see the variables of the script that submitted them, so a function
+ * that uses any is rejected up front; arguments and results are copied into plain Java values ({@link #copy(Object)})
+ * on the thread that owns them.
+ */
+public class WorkerPool {
+
+    private static final int MAX_CACHED_FUNCTIONS = 256;
+
+    private Profiler profiler;
+    private ExecutorService executor;
+    private ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+    private CompletableFuture<Set<String>> globalNames;
+    private Map<String, String> checked = new LruMap<>(MAX_CACHED_FUNCTIONS);
+
+    public WorkerPool(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public synchronized void start(int threads) {
+        if (executor != null) {
+            return;
+        }
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "NashornBukkit Worker #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        globalNames = CompletableFuture.supplyAsync(() -> workers.get().globalNames(), executor);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    public CompletableFuture<Object> submit(Script script, String function, Object... args) {
+        ExecutorService executor;
+        CompletableFuture<Set<String>> globalNames;
+        synchronized (this) {
+            executor = this.executor;
+            globalNames = this.globalNames;
+        }
+        if (executor == null) {
+            throw new IllegalStateException("The worker pool is not running");
+        }
+        check(function, globalNames.join());
+
+        Object[] copied = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            copied[i] = copy(args[i]);
+        }
+        HandlerStats stats = script.getStats("submit");
+        return CompletableFuture.supplyAsync(() -> {
+            boolean profiling = profiler.isEnabled();
+            long allocated = profiling ? profiler.getAllocatedBytes() : 0;
+            long start = profiling ? System.nanoTime() : 0;
+            try {
+                return copy(workers.get().function(function).call(null, copied));
+            } catch (ScriptException e) {
+                throw new CompletionException(e);
+            } finally {
+                if (profiling) {
+                    profiler.record(stats, start, allocated);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Rejects a function that reads names a worker cannot resolve, which are the variables it captured from its script.
+     * Anything it declares itself and the built-ins of a worker's global are fine.
+     */
+    private void check(String function, Set<String> globalNames) {
+        String problem;
+        synchronized (checked) {
+            problem = checked.get(function);
+        }
+        if (problem == null) {
+            problem = findProblem(function, globalNames);
+            synchronized (checked) {
+                checked.put(function, problem);
+            }
+        }
+        if (!problem.isEmpty()) {
+            throw new IllegalArgumentException(problem);
+        }
+    }
+
+    private static String findProblem(String function, Set<String> globalNames) {
+        FunctionNode program = ScriptParser.parse("submit", "(" + function + ")");
+        if (program == null) {
+            return "Only functions written in JavaScript can run on a worker";
+        }
+
+        Set<String> declared = new HashSet<>();
+        Set<String> used = new TreeSet<>();
+        program.accept(new NodeVisitor<LexicalContext>(new LexicalContext()) {
+            @Override
+            public boolean enterFunctionNode(FunctionNode functionNode) {
+                declared.add(functionNode.getIdent().getName());
+                for (IdentNode parameter : functionNode.getParameters()) {
+                    declared.add(parameter.getName());
+                }
+                return true;
+            }
+
+            @Override
+            public boolean enterVarNode(VarNode varNode) {
+                declared.add(varNode.getName().getName());
+                return true;
+            }
+
+            @Override
+            public boolean enterCatchNode(CatchNode catchNode) {
+                declared.add(catchNode.getException().getName());
+                return true;
+            }
+
+            @Override
+            public boolean enterIdentNode(IdentNode identNode) {
+                if (!identNode.isPropertyName()) {
+                    used.add(identNode.getName());
+                }
+                return false;
+            }
+        });
+        used.removeAll(declared);
+        used.removeAll(globalNames);
+        used.remove("this");
+        used.remove("arguments");
+        if (!used.isEmpty()) {
+            return "A function run on a worker cannot use variables of its script, pass them as arguments instead: " + String.join(", ", used);
+        }
+        return "";
+    }
+
+    /**
+     * Copies a value so it can be handed to another thread. Script arrays and objects become unmodifiable lists and
+     * maps, undefined becomes null and everything else is passed through as is.
+     */
+    public static Object copy(Object value) {
+        if (!(value instanceof ScriptObjectMirror)) {
+            return value;
+        }
+        ScriptObjectMirror mirror = (ScriptObjectMirror) value;
+        if (mirror.isFunction()) {
+            throw new IllegalArgumentException("Functions cannot be passed between threads");
+        }
+        if (mirror.isArray()) {
+            List<Object> list = new ArrayList<>(mirror.size());
+            for (Object element : mirror.values()) {
+                list.add(copy(element));
+            }
+            return Collections.unmodifiableList(list);
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : mirror.entrySet()) {
+            map.put(entry.getKey(), copy(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static class Worker {
+
+        private NashornScriptEngine engine = (NashornScriptEngine) new NashornScriptEngineFactory().getScriptEngine(NashornBukkit.class.getClassLoader());
+        private ScriptContext context = new SimpleScriptContext();
+        private Map<String, JSObject> functions = new LruMap<>(MAX_CACHED_FUNCTIONS);
+
+        private Worker() {
+            Bindings bindings = engine.createBindings();
+            bindings.remove("load");
+            bindings.remove("loadWithNewGlobal");
+            bindings.remove("exit");
+            bindings.remove("quit");
+            context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+        }
+
+        private JSObject function(String source) throws ScriptException {
+            JSObject function = functions.get(source);
+            if (function == null) {
+                Object evaluated = engine.eval("(" + source + ")", context);
+                if (!(evaluated instanceof JSObject) || !((JSObject) evaluated).isFunction()) {
+                    throw new ScriptException("Not a function: " + source);
+                }
+                function = (JSObject) evaluated;
+                functions.put(source, function);
+            }
+            return function;
+        }
+
+        private Set<String> globalNames() {
+            Set<String> names = new HashSet<>();
+            try {
+                for (Object name : ((ScriptObjectMirror) engine.eval("Object.getOwnPropertyNames(this)", context)).values()) {
+                    names.add((String) name);
+                }
+            } catch (ScriptException e) {
+                throw new CompletionException(e);
+            }
+            return Collections.unmodifiableSet(names);
+        }
+    }
+
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        private LruMap(int maxSize) {
+            super(16, 0.75F, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
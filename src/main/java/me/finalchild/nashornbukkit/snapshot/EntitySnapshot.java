@@ -0,0 +1,100 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.snapshot;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+
+import java.util.UUID;
+
+/**
+ * The type and position of an entity at one tick. Safe to read from any thread.
+ */
+public final class EntitySnapshot {
+
+    private final int entityId;
+    private final UUID uniqueId;
+    private final String type;
+    private final String customName;
+    private final String world;
+    private final double x;
+    private final double y;
+    private final double z;
+
+    EntitySnapshot(Entity entity, Location location) {
+        entityId = entity.getEntityId();
+        uniqueId = entity.getUniqueId();
+        type = entity.getType() != null ? entity.getType().name() : null;
+        customName = entity.getCustomName();
+        world = location.getWorld() != null ? location.getWorld().getName() : null;
+        x = location.getX();
+        y = location.getY();
+        z = location.getZ();
+    }
+
+    public int getEntityId() {
+        return entityId;
+    }
+
+    public UUID getUniqueId() {
+        return uniqueId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getCustomName() {
+        return customName;
+    }
+
+    public String getWorld() {
+        return world;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getZ() {
+        return z;
+    }
+
+    public double distanceSquared(double x, double y, double z) {
+        double dx = this.x - x;
+        double dy = this.y - y;
+        double dz = this.z - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    @Override
+    public String toString() {
+        return "EntitySnapshot{" + type + " #" + entityId + " " + world + " " + x + "," + y + "," + z + "}";
+    }
+}
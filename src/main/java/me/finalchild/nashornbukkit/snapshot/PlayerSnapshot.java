@@ -0,0 +1,148 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.snapshot;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+import java.util.UUID;
+
+/**
+ * The state of a player at one tick. Safe to read from any thread.
+ */
+public final class PlayerSnapshot {
+
+    private final UUID uniqueId;
+    private final String name;
+    private final String displayName;
+    private final String world;
+    private final double x;
+    private final double y;
+    private final double z;
+    private final float yaw;
+    private final float pitch;
+    private final double health;
+    private final int foodLevel;
+    private final int level;
+    private final String gameMode;
+    private final boolean sneaking;
+    private final boolean sprinting;
+    private final boolean flying;
+
+    PlayerSnapshot(Player player, Location location) {
+        uniqueId = player.getUniqueId();
+        name = player.getName();
+        displayName = player.getDisplayName();
+        world = location.getWorld() != null ? location.getWorld().getName() : null;
+        x = location.getX();
+        y = location.getY();
+        z = location.getZ();
+        yaw = location.getYaw();
+        pitch = location.getPitch();
+        health = player.getHealth();
+        foodLevel = player.getFoodLevel();
+        level = player.getLevel();
+        gameMode = player.getGameMode() != null ? player.getGameMode().name() : null;
+        sneaking = player.isSneaking();
+        sprinting = player.isSprinting();
+        flying = player.isFlying();
+    }
+
+    public UUID getUniqueId() {
+        return uniqueId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public String getWorld() {
+        return world;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getZ() {
+        return z;
+    }
+
+    public float getYaw() {
+        return yaw;
+    }
+
+    public float getPitch() {
+        return pitch;
+    }
+
+    public double getHealth() {
+        return health;
+    }
+
+    public int getFoodLevel() {
+        return foodLevel;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public String getGameMode() {
+        return gameMode;
+    }
+
+    public boolean isSneaking() {
+        return sneaking;
+    }
+
+    public boolean isSprinting() {
+        return sprinting;
+    }
+
+    public boolean isFlying() {
+        return flying;
+    }
+
+    public double distanceSquared(double x, double y, double z) {
+        double dx = this.x - x;
+        double dy = this.y - y;
+        double dz = this.z - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerSnapshot{" + name + " " + world + " " + x + "," + y + "," + z + "}";
+    }
+}
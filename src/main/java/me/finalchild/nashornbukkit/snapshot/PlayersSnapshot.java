@@ -0,0 +1,81 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.snapshot;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The online players at one tick, with lookups by id and by name. Safe to read from any thread.
+ */
+public final class PlayersSnapshot {
+
+    static final PlayersSnapshot EMPTY = new PlayersSnapshot(-1, Collections.emptyList());
+
+    private final long tick;
+    private final List<PlayerSnapshot> players;
+    private final Map<UUID, PlayerSnapshot> byId;
+    private final Map<String, PlayerSnapshot> byName;
+
+    PlayersSnapshot(long tick, List<PlayerSnapshot> players) {
+        this.tick = tick;
+        this.players = Collections.unmodifiableList(players);
+        Map<UUID, PlayerSnapshot> byId = new HashMap<>();
+        Map<String, PlayerSnapshot> byName = new HashMap<>();
+        for (PlayerSnapshot player : players) {
+            byId.put(player.getUniqueId(), player);
+            byName.put(player.getName().toLowerCase(Locale.ROOT), player);
+        }
+        this.byId = byId;
+        this.byName = byName;
+    }
+
+    /**
+     * Returns the tick of the {@link SnapshotManager} in which this snapshot was taken, or -1 if none was taken yet.
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    public List<PlayerSnapshot> getAll() {
+        return players;
+    }
+
+    public int size() {
+        return players.size();
+    }
+
+    public PlayerSnapshot get(UUID uniqueId) {
+        return byId.get(uniqueId);
+    }
+
+    public PlayerSnapshot get(String name) {
+        return byName.get(name.toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.snapshot;
+
+import org.bukkit.Material;
+
+/**
+ * The blocks of a box in a world at one tick, packed as {@code id << 4 | data} in one short per block. It never
+ * changes after it is taken, so it is safe to read from any thread.
+ */
+public final class RegionSnapshot {
+
+    private final String world;
+    private final int minX;
+    private final int minY;
+    private final int minZ;
+    private final int maxX;
+    private final int maxY;
+    private final int maxZ;
+    private final int sizeX;
+    private final int sizeZ;
+    private final int minChunkX;
+    private final int minChunkZ;
+    private final int chunksX;
+    private final short[] blocks;
+    private final boolean[] loaded;
+
+    RegionSnapshot(String world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, short[] blocks, boolean[] loaded) {
+        this.world = world;
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.maxZ = maxZ;
+        this.sizeX = maxX - minX + 1;
+        this.sizeZ = maxZ - minZ + 1;
+        this.minChunkX = minX >> 4;
+        this.minChunkZ = minZ >> 4;
+        this.chunksX = (maxX >> 4) - minChunkX + 1;
+        this.blocks = blocks;
+        this.loaded = loaded;
+    }
+
+    public String getWorld() {
+        return world;
+    }
+
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMinZ() {
+        return minZ;
+    }
+
+    public int getMaxX() {
+        return maxX;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+
+    public int getMaxZ() {
+        return maxZ;
+    }
+
+    public boolean contains(int x, int y, int z) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+
+    /**
+     * Returns whether the chunk holding the column was loaded when the snapshot was taken. Blocks of a chunk that
+     * was not have no type and id -1. Always false for a snapshot outside the world's height, which read no chunks.
+     */
+    public boolean isLoaded(int x, int z) {
+        return x >= minX && x <= maxX && z >= minZ && z <= maxZ && loaded.length > 0
+                && loaded[((z >> 4) - minChunkZ) * chunksX + (x >> 4) - minChunkX];
+    }
+
+    @SuppressWarnings("deprecation")
+    public Material getType(int x, int y, int z) {
+        int block = getBlock(x, y, z);
+        return block < 0 ? null : Material.getMaterial(block >> 4);
+    }
+
+    @Deprecated
+    public int getTypeId(int x, int y, int z) {
+        int block = getBlock(x, y, z);
+        return block < 0 ? -1 : block >> 4;
+    }
+
+    @Deprecated
+    public int getData(int x, int y, int z) {
+        int block = getBlock(x, y, z);
+        return block < 0 ? -1 : block & 15;
+    }
+
+    private int getBlock(int x, int y, int z) {
+        if (!contains(x, y, z)) {
+            throw new IllegalArgumentException("Outside of the region: " + x + ", " + y + ", " + z);
+        }
+        if (!isLoaded(x, z)) {
+            return -1;
+        }
+        return blocks[((y - minY) * sizeZ + z - minZ) * sizeX + x - minX] & 0xFFFF;
+    }
+}
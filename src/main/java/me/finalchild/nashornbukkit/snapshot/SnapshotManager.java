@@ -0,0 +1,190 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.snapshot;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Takes immutable snapshots of game state on the main thread so that async code can read it without touching Bukkit.
+ * <p>
+ * Players are snapshotted at the start of every tick, but only while someone has read them in the last
+ * {@link #IDLE_TICKS} ticks, so the snapshot costs nothing when no script uses it. Regions and entities are only
+ * snapshotted on demand.
+ */
+public class SnapshotManager implements Runnable {
+
+    private static final long IDLE_TICKS = 100;
+    // 8 MiB of packed blocks, about a 128 block cube.
+    private static final int MAX_BLOCKS = 1 << 22;
+    // Every loaded chunk of a region is copied on the main thread, so a flat region is bounded by its chunks as well.
+    private static final int MAX_CHUNKS = 1 << 13;
+
+    private BukkitTask bukkitTask;
+
+    private volatile long tick;
+    private volatile long lastRead = -IDLE_TICKS - 1;
+    private volatile PlayersSnapshot players = PlayersSnapshot.EMPTY;
+
+    public void start() {
+        if (bukkitTask == null) {
+            bukkitTask = NashornBukkit.getInstance().getServer().getScheduler().runTaskTimer(NashornBukkit.getInstance(), this, 0, 1);
+        }
+    }
+
+    public void stop() {
+        if (bukkitTask != null) {
+            bukkitTask.cancel();
+            bukkitTask = null;
+        }
+        players = PlayersSnapshot.EMPTY;
+    }
+
+    @Override
+    public void run() {
+        tick++;
+        if (tick - lastRead <= IDLE_TICKS) {
+            players = capturePlayers();
+        }
+    }
+
+    /**
+     * Returns the players of this tick. Off the main thread, this is the snapshot taken at the start of the latest
+     * tick, or an older one if players were not read for a while; {@link PlayersSnapshot#getTick()} tells which.
+     */
+    public PlayersSnapshot getPlayers() {
+        long now = tick;
+        lastRead = now;
+        PlayersSnapshot current = players;
+        if (current.getTick() != now && Bukkit.isPrimaryThread()) {
+            current = capturePlayers();
+            players = current;
+        }
+        return current;
+    }
+
+    private PlayersSnapshot capturePlayers() {
+        Collection<? extends Player> online = Bukkit.getOnlinePlayers();
+        List<PlayerSnapshot> snapshots = new ArrayList<>(online.size());
+        Location location = new Location(null, 0, 0, 0);
+        for (Player player : online) {
+            snapshots.add(new PlayerSnapshot(player, player.getLocation(location)));
+        }
+        return new PlayersSnapshot(tick, snapshots);
+    }
+
+    /**
+     * Snapshots the entities of a world. Must be called on the main thread.
+     */
+    public List<EntitySnapshot> captureEntities(World world) {
+        checkMainThread();
+        List<Entity> entities = world.getEntities();
+        List<EntitySnapshot> snapshots = new ArrayList<>(entities.size());
+        Location location = new Location(null, 0, 0, 0);
+        for (Entity entity : entities) {
+            snapshots.add(new EntitySnapshot(entity, entity.getLocation(location)));
+        }
+        return Collections.unmodifiableList(snapshots);
+    }
+
+    /**
+     * Snapshots the blocks between two corners, both inclusive. Chunks that are not loaded are not loaded for this;
+     * their blocks are left out, as {@link RegionSnapshot#isLoaded(int, int)} tells. A region entirely outside the
+     * world's height is empty. Must be called on the main thread.
+     *
+     * @throws IllegalArgumentException if the region holds too many blocks or spans too many chunks
+     */
+    @SuppressWarnings("deprecation")
+    public RegionSnapshot captureRegion(World world, int x1, int y1, int z1, int x2, int y2, int z2) {
+        checkMainThread();
+        int minX = Math.min(x1, x2);
+        int minY = Math.max(0, Math.min(y1, y2));
+        int minZ = Math.min(z1, z2);
+        int maxX = Math.max(x1, x2);
+        int maxY = Math.min(world.getMaxHeight() - 1, Math.max(y1, y2));
+        int maxZ = Math.max(z1, z2);
+        long sizeX = (long) maxX - minX + 1;
+        long sizeY = Math.max(0, maxY - minY + 1);
+        long sizeZ = (long) maxZ - minZ + 1;
+        if (sizeX * sizeY * sizeZ > MAX_BLOCKS) {
+            throw new IllegalArgumentException("A region may hold at most " + MAX_BLOCKS + " blocks");
+        }
+        if (sizeY == 0) {
+            // Entirely above or below the world, so there is nothing to read and no chunk to look at.
+            return new RegionSnapshot(world.getName(), minX, minY, minZ, maxX, maxY, maxZ, new short[0], new boolean[0]);
+        }
+        int minChunkX = minX >> 4;
+        int minChunkZ = minZ >> 4;
+        long chunksX = (long) (maxX >> 4) - minChunkX + 1;
+        long chunksZ = (long) (maxZ >> 4) - minChunkZ + 1;
+        if (chunksX * chunksZ > MAX_CHUNKS) {
+            throw new IllegalArgumentException("A region may span at most " + MAX_CHUNKS + " chunks");
+        }
+        short[] blocks = new short[(int) (sizeX * sizeY * sizeZ)];
+        boolean[] loaded = new boolean[(int) (chunksX * chunksZ)];
+        for (int cz = 0; cz < chunksZ; cz++) {
+            for (int cx = 0; cx < chunksX; cx++) {
+                int chunkX = minChunkX + cx;
+                int chunkZ = minChunkZ + cz;
+                if (!world.isChunkLoaded(chunkX, chunkZ)) {
+                    continue;
+                }
+                loaded[(int) (cz * chunksX + cx)] = true;
+                // Only read while copying the box, so the full chunk is not kept.
+                ChunkSnapshot chunk = world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(false, false, false);
+                int fromX = Math.max(minX, chunkX << 4);
+                int toX = Math.min(maxX, (chunkX << 4) + 15);
+                int fromZ = Math.max(minZ, chunkZ << 4);
+                int toZ = Math.min(maxZ, (chunkZ << 4) + 15);
+                for (int y = minY; y <= maxY; y++) {
+                    for (int z = fromZ; z <= toZ; z++) {
+                        int row = (int) (((y - minY) * sizeZ + z - minZ) * sizeX) - minX;
+                        for (int x = fromX; x <= toX; x++) {
+                            blocks[row + x] = (short) (chunk.getBlockTypeId(x & 15, y, z & 15) << 4 | chunk.getBlockData(x & 15, y, z & 15));
+                        }
+                    }
+                }
+            }
+        }
+        return new RegionSnapshot(world.getName(), minX, minY, minZ, maxX, maxY, maxZ, blocks, loaded);
+    }
+
+    private static void checkMainThread() {
+        if (!Bukkit.isPrimaryThread()) {
+            throw new IllegalStateException("Snapshots can only be taken on the main thread; use script.supplySync to take one from async code");
+        }
+    }
+}
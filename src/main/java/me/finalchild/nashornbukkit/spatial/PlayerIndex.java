@@ -0,0 +1,417 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.spatial;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.event.vehicle.VehicleMoveEvent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The online players on a grid of 16 by 16 block columns per world, kept up to date from movement events, including
+ * those of the vehicles they ride, so that finding the players near a point only looks at the columns around it.
+ * <p>
+ * The index is built, and its listeners registered, when it is first queried, so it costs nothing until a script uses
+ * it. A move only touches the grid when the player crosses into another column. Main thread only.
+ */
+public class PlayerIndex implements Listener {
+
+    private static final int CELL_SHIFT = 4;
+    private static final int CELL_SIZE = 1 << CELL_SHIFT;
+    private static final Player[] NO_PLAYERS = new Player[0];
+    private static final Comparator<Entry> NEAREST_FIRST = Comparator.comparingDouble(entry -> entry.distance);
+
+    private boolean started;
+    private Map<World, Grid> grids = new HashMap<>();
+    private Map<UUID, Entry> entries = new HashMap<>();
+    // Reused by every query, which is fine as queries only run on the main thread.
+    private List<Entry> found = new ArrayList<>();
+
+    public void stop() {
+        if (started) {
+            HandlerList.unregisterAll(this);
+            started = false;
+        }
+        grids.clear();
+        entries.clear();
+        found.clear();
+    }
+
+    /**
+     * Returns the players within a radius of a point, in no particular order.
+     */
+    public Player[] getNearby(World world, double x, double y, double z, double radius) {
+        Grid grid = getGrid(world);
+        if (grid == null) {
+            return NO_PLAYERS;
+        }
+        double radiusSquared = radius * radius;
+        found.clear();
+        int minCellX = floor(x - radius) >> CELL_SHIFT;
+        int maxCellX = floor(x + radius) >> CELL_SHIFT;
+        int minCellZ = floor(z - radius) >> CELL_SHIFT;
+        int maxCellZ = floor(z + radius) >> CELL_SHIFT;
+        if ((long) (maxCellX - minCellX + 1) * (maxCellZ - minCellZ + 1) > grid.cells.size()) {
+            // Fewer columns are occupied than the radius covers, so looking at the occupied ones is cheaper.
+            for (Cell cell : grid.cells.values()) {
+                collectNearby(cell, x, y, z, radiusSquared);
+            }
+        } else {
+            for (int cellZ = minCellZ; cellZ <= maxCellZ; cellZ++) {
+                for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                    Cell cell = grid.cells.get(key(cellX, cellZ));
+                    if (cell != null) {
+                        collectNearby(cell, x, y, z, radiusSquared);
+                    }
+                }
+            }
+        }
+        return toPlayers(found.size());
+    }
+
+    /**
+     * Returns the players in a box between two corners, both inclusive, in no particular order.
+     */
+    public Player[] getWithin(World world, double x1, double y1, double z1, double x2, double y2, double z2) {
+        Grid grid = getGrid(world);
+        if (grid == null) {
+            return NO_PLAYERS;
+        }
+        double minX = Math.min(x1, x2);
+        double minY = Math.min(y1, y2);
+        double minZ = Math.min(z1, z2);
+        double maxX = Math.max(x1, x2);
+        double maxY = Math.max(y1, y2);
+        double maxZ = Math.max(z1, z2);
+        found.clear();
+        int minCellX = floor(minX) >> CELL_SHIFT;
+        int maxCellX = floor(maxX) >> CELL_SHIFT;
+        int minCellZ = floor(minZ) >> CELL_SHIFT;
+        int maxCellZ = floor(maxZ) >> CELL_SHIFT;
+        boolean scanAll = (long) (maxCellX - minCellX + 1) * (maxCellZ - minCellZ + 1) > grid.cells.size();
+        if (scanAll) {
+            for (Cell cell : grid.cells.values()) {
+                collectWithin(cell, minX, minY, minZ, maxX, maxY, maxZ);
+            }
+        } else {
+            for (int cellZ = minCellZ; cellZ <= maxCellZ; cellZ++) {
+                for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                    Cell cell = grid.cells.get(key(cellX, cellZ));
+                    if (cell != null) {
+                        collectWithin(cell, minX, minY, minZ, maxX, maxY, maxZ);
+                    }
+                }
+            }
+        }
+        return toPlayers(found.size());
+    }
+
+    /**
+     * Returns up to count players nearest to a point, nearest first.
+     */
+    public Player[] getNearest(World world, double x, double y, double z, int count) {
+        Grid grid = getGrid(world);
+        if (grid == null || count <= 0) {
+            return NO_PLAYERS;
+        }
+        found.clear();
+        int centerX = floor(x) >> CELL_SHIFT;
+        int centerZ = floor(z) >> CELL_SHIFT;
+        // Looks at the columns in rings around the center. Every column outside ring r is at least r columns away
+        // horizontally, so once count players are that close, no player further out can be nearer.
+        for (int ring = 0; ; ring++) {
+            if (8L * ring > grid.cells.size()) {
+                // The rings have grown larger than the occupied columns, so looking at all of them is cheaper.
+                found.clear();
+                for (Cell cell : grid.cells.values()) {
+                    collectAll(cell, x, y, z);
+                }
+                break;
+            }
+            for (int cellZ = centerZ - ring; cellZ <= centerZ + ring; cellZ++) {
+                boolean edge = cellZ == centerZ - ring || cellZ == centerZ + ring;
+                for (int cellX = centerX - ring; cellX <= centerX + ring; cellX += edge ? 1 : Math.max(1, 2 * ring)) {
+                    Cell cell = grid.cells.get(key(cellX, cellZ));
+                    if (cell != null) {
+                        collectAll(cell, x, y, z);
+                    }
+                }
+            }
+            if (found.size() >= grid.size) {
+                break;
+            }
+            if (found.size() >= count) {
+                found.sort(NEAREST_FIRST);
+                double reach = (double) ring * CELL_SIZE;
+                if (found.get(count - 1).distance <= reach * reach) {
+                    break;
+                }
+            }
+        }
+        found.sort(NEAREST_FIRST);
+        return toPlayers(Math.min(count, found.size()));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        update(event.getPlayer(), event.getTo());
+    }
+
+    /**
+     * Players riding something get no move events of their own, so they are moved along with what they ride, at any
+     * depth of passengers.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onVehicleMove(VehicleMoveEvent event) {
+        updatePassengers(event.getVehicle());
+    }
+
+    private void updatePassengers(Entity vehicle) {
+        for (Entity passenger : vehicle.getPassengers()) {
+            if (passenger instanceof Player) {
+                update((Player) passenger, passenger.getLocation());
+            }
+            updatePassengers(passenger);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        update(event.getPlayer(), event.getTo());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerRespawn(PlayerRespawnEvent event) {
+        update(event.getPlayer(), event.getRespawnLocation());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        update(event.getPlayer(), event.getPlayer().getLocation());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        update(event.getPlayer(), event.getPlayer().getLocation());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        Entry entry = entries.remove(event.getPlayer().getUniqueId());
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    private Grid getGrid(World world) {
+        if (!Bukkit.isPrimaryThread()) {
+            throw new IllegalStateException("Players can only be looked up on the main thread; use script.snapshotPlayers from async code");
+        }
+        if (!started) {
+            started = true;
+            NashornBukkit.getInstance().getServer().getPluginManager().registerEvents(this, NashornBukkit.getInstance());
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                update(player, player.getLocation());
+            }
+        }
+        return grids.get(world);
+    }
+
+    private void update(Player player, Location to) {
+        if (to == null || to.getWorld() == null) {
+            return;
+        }
+        World world = to.getWorld();
+        int cellX = floor(to.getX()) >> CELL_SHIFT;
+        int cellZ = floor(to.getZ()) >> CELL_SHIFT;
+        Entry entry = entries.get(player.getUniqueId());
+        boolean moved = true;
+        if (entry == null) {
+            entry = new Entry(player);
+            entries.put(player.getUniqueId(), entry);
+        } else if (entry.world != world || entry.cellX != cellX || entry.cellZ != cellZ) {
+            remove(entry);
+        } else {
+            moved = false;
+        }
+        entry.x = to.getX();
+        entry.y = to.getY();
+        entry.z = to.getZ();
+        if (!moved) {
+            return;
+        }
+        entry.world = world;
+        entry.cellX = cellX;
+        entry.cellZ = cellZ;
+        Grid grid = grids.computeIfAbsent(world, w -> new Grid());
+        grid.cells.computeIfAbsent(key(cellX, cellZ), k -> new Cell()).add(entry);
+        grid.size++;
+    }
+
+    private void remove(Entry entry) {
+        Grid grid = grids.get(entry.world);
+        if (grid == null) {
+            return;
+        }
+        long key = key(entry.cellX, entry.cellZ);
+        Cell cell = grid.cells.get(key);
+        if (cell != null && cell.remove(entry)) {
+            grid.size--;
+            if (cell.size == 0) {
+                grid.cells.remove(key);
+            }
+        }
+        if (grid.size == 0) {
+            grids.remove(entry.world);
+        }
+    }
+
+    private void collectNearby(Cell cell, double x, double y, double z, double radiusSquared) {
+        for (int i = 0; i < cell.size; i++) {
+            Entry entry = cell.entries[i];
+            double distance = entry.distanceSquared(x, y, z);
+            if (distance <= radiusSquared) {
+                found.add(entry);
+            }
+        }
+    }
+
+    private void collectWithin(Cell cell, double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        for (int i = 0; i < cell.size; i++) {
+            Entry entry = cell.entries[i];
+            if (entry.x >= minX && entry.x <= maxX && entry.y >= minY && entry.y <= maxY && entry.z >= minZ && entry.z <= maxZ) {
+                found.add(entry);
+            }
+        }
+    }
+
+    private void collectAll(Cell cell, double x, double y, double z) {
+        for (int i = 0; i < cell.size; i++) {
+            Entry entry = cell.entries[i];
+            entry.distance = entry.distanceSquared(x, y, z);
+            found.add(entry);
+        }
+    }
+
+    private Player[] toPlayers(int count) {
+        if (count == 0) {
+            return NO_PLAYERS;
+        }
+        Player[] players = new Player[count];
+        for (int i = 0; i < count; i++) {
+            players[i] = found.get(i).player;
+        }
+        found.clear();
+        return players;
+    }
+
+    private static int floor(double value) {
+        int truncated = (int) value;
+        return value < truncated ? truncated - 1 : truncated;
+    }
+
+    private static long key(int cellX, int cellZ) {
+        return (long) cellX << 32 | cellZ & 0xFFFFFFFFL;
+    }
+
+    private static final class Grid {
+
+        private Map<Long, Cell> cells = new HashMap<>();
+        private int size;
+    }
+
+    private static final class Cell {
+
+        private Entry[] entries = new Entry[4];
+        private int size;
+
+        private void add(Entry entry) {
+            if (size == entries.length) {
+                Entry[] grown = new Entry[size * 2];
+                System.arraycopy(entries, 0, grown, 0, size);
+                entries = grown;
+            }
+            entry.slot = size;
+            entries[size++] = entry;
+        }
+
+        private boolean remove(Entry entry) {
+            int slot = entry.slot;
+            if (slot >= size || entries[slot] != entry) {
+                return false;
+            }
+            Entry last = entries[--size];
+            entries[slot] = last;
+            last.slot = slot;
+            entries[size] = null;
+            return true;
+        }
+    }
+
+    private static final class Entry {
+
+        private Player player;
+        private World world;
+        private int cellX;
+        private int cellZ;
+        private int slot;
+        private double x;
+        private double y;
+        private double z;
+        // Squared distance to the point of the current nearest query.
+        private double distance;
+
+        private Entry(Player player) {
+            this.player = player;
+        }
+
+        private double distanceSquared(double x, double y, double z) {
+            double dx = this.x - x;
+            double dy = this.y - y;
+            double dz = this.z - z;
+            return dx * dx + dy * dy + dz * dz;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.store;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent key-value store of one script.
+ * <p>
+ * Every entry is kept in memory, so reads are map lookups. Writes update the memory at once and are appended to a
+ * memory-mapped log on the store thread, so they never wait for the disk. A record is
+ * {@code [int length][int crc][short key length][key][value as JSON]}, where an empty value removes the key. When
+ * the log has grown to twice its size after the last compaction, the live entries are written to a log of the next
+ * generation, {@code <name>.<generation>.log}, and the old one is deleted. Java cannot unmap a file on demand, and some
+ * platforms do not delete a file that is still mapped, so an old log that cannot be deleted yet is retried later.
+ */
+public class ScriptStore {
+
+    private static final int MIN_CAPACITY = 64 * 1024;
+    private static final int MIN_COMPACTION_SIZE = 256 * 1024;
+    private static final int HEADER = 8;
+
+    private String name;
+    private Path directory;
+    private Pattern fileName;
+    private Executor writer;
+
+    private Map<String, Object> entries = new ConcurrentHashMap<>();
+
+    // Only touched on the store thread, after the constructor.
+    private long generation;
+    private Path file;
+    private List<Path> stale = new ArrayList<>();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+    private int compactedSize;
+    private boolean dirty;
+    private boolean closed;
+
+    ScriptStore(String name, Path directory, Executor writer) throws IOException {
+        this.name = name;
+        this.directory = directory;
+        this.fileName = Pattern.compile(Pattern.quote(name) + "\\.(\\d+)\\.log(\\.compact)?");
+        this.writer = writer;
+        Files.createDirectories(directory);
+        generation = findGeneration();
+        file = getFile(generation);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(Math.max(MIN_CAPACITY, (int) channel.size()));
+        replay();
+        compactedSize = position;
+        deleteStale();
+    }
+
+    /**
+     * Returns the newest generation on disk and marks every other file of this store as stale. A compaction that was
+     * cut off leaves only a {@code .compact} file, which is never newest.
+     */
+    private long findGeneration() throws IOException {
+        long newest = 0;
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                Matcher matcher = fileName.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    files.add(path);
+                    if (matcher.group(2) == null) {
+                        newest = Math.max(newest, Long.parseLong(matcher.group(1)));
+                    }
+                }
+            }
+        }
+        Path current = getFile(newest);
+        for (Path path : files) {
+            if (!path.equals(current)) {
+                stale.add(path);
+            }
+        }
+        return newest;
+    }
+
+    private Path getFile(long generation) {
+        return directory.resolve(name + "." + generation + ".log");
+    }
+
+    private void deleteStale() {
+        for (Iterator<Path> iterator = stale.iterator(); iterator.hasNext(); ) {
+            try {
+                Files.deleteIfExists(iterator.next());
+                iterator.remove();
+            } catch (IOException e) {
+                // Still mapped; the buffer is released by the garbage collector, and the next attempt may succeed.
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Object get(String key) {
+        return entries.get(key);
+    }
+
+    public Object get(String key, Object defaultValue) {
+        return entries.getOrDefault(key, defaultValue);
+    }
+
+    public String getString(String key, String defaultValue) {
+        Object value = entries.get(key);
+        return value instanceof String ? (String) value : defaultValue;
+    }
+
+    public double getNumber(String key, double defaultValue) {
+        Object value = entries.get(key);
+        return value instanceof Double ? (Double) value : defaultValue;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = entries.get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    public boolean has(String key) {
+        return entries.containsKey(key);
+    }
+
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Stores a value. Script arrays and objects are copied, so changing them later does not change the store.
+     * Storing null or undefined removes the key.
+     */
+    public void put(String key, Object value) {
+        if (key.length() > 0x3FFF) {
+            throw new IllegalArgumentException("Key too long");
+        }
+        Object normalized = StoreValues.normalize(value);
+        if (normalized == null) {
+            remove(key);
+            return;
+        }
+        entries.put(key, normalized);
+        writer.execute(() -> append(key, normalized));
+    }
+
+    public void remove(String key) {
+        if (entries.remove(key) != null) {
+            writer.execute(() -> append(key, null));
+        }
+    }
+
+    /**
+     * Completes once everything written so far is on disk.
+     */
+    public CompletableFuture<Void> flush() {
+        return CompletableFuture.runAsync(this::force, writer);
+    }
+
+    private void append(String key, Object value) {
+        if (closed) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0] : StoreValues.toJson(value).getBytes(StandardCharsets.UTF_8);
+        int length = 2 + keyBytes.length + valueBytes.length;
+        try {
+            if (position + HEADER + length + 4 > buffer.capacity()) {
+                map(Math.max(buffer.capacity() * 2, position + HEADER + length + 4));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(keyBytes);
+            crc.update(valueBytes);
+            buffer.position(position + HEADER);
+            buffer.putShort((short) keyBytes.length);
+            buffer.put(keyBytes);
+            buffer.put(valueBytes);
+            buffer.putInt(position + 4, (int) crc.getValue());
+            // The end of the log is marked by a zero length, and the length of this record goes last, so a record is
+            // not seen until it is complete.
+            buffer.putInt(position + HEADER + length, 0);
+            buffer.putInt(position, length);
+            position += HEADER + length;
+            dirty = true;
+
+            if (position > Math.max(MIN_COMPACTION_SIZE, compactedSize * 2)) {
+                compact();
+            }
+        } catch (IOException e) {
+            NashornBukkit.getInstance().getLogger().log(Level.SEVERE, "Could not write to store " + file, e);
+        }
+    }
+
+    void force() {
+        if (dirty && !closed) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Writes the current entries to a log of the next generation and switches to it. Records still queued behind this
+     * are appended to the new log, and since they are applied in order, the result is the same.
+     */
+    private void compact() throws IOException {
+        Path next = getFile(generation + 1);
+        Path temp = next.resolveSibling(next.getFileName() + ".compact");
+        int size = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer record = ByteBuffer.allocate(4096);
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] valueBytes = StoreValues.toJson(entry.getValue()).getBytes(StandardCharsets.UTF_8);
+                int length = 2 + keyBytes.length + valueBytes.length;
+                if (record.capacity() < HEADER + length) {
+                    record = ByteBuffer.allocate(HEADER + length);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(keyBytes);
+                crc.update(valueBytes);
+                record.clear();
+                record.putInt(length).putInt((int) crc.getValue()).putShort((short) keyBytes.length).put(keyBytes).put(valueBytes);
+                record.flip();
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+                size += HEADER + length;
+            }
+            out.force(true);
+        }
+
+        // The new log only counts once it is complete, so a crash before this move leaves the old one in charge.
+        Files.move(temp, next, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        buffer = null;
+        stale.add(file);
+        generation++;
+        file = next;
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(Math.max(MIN_CAPACITY, size * 2));
+        position = size;
+        compactedSize = size;
+        dirty = false;
+        deleteStale();
+    }
+
+    private void replay() {
+        while (position + HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < 2 || position + HEADER + length > buffer.capacity()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(position + HEADER);
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 2, length - 2);
+            int keyLength = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+            if ((int) crc.getValue() != buffer.getInt(position + 4) || 2 + keyLength > length) {
+                // A record that was cut off by a crash. The next write replaces it and marks the new end.
+                NashornBukkit.getInstance().getLogger().warning("Ignoring a damaged record at " + position + " in " + file);
+                break;
+            }
+            String key = new String(payload, 2, keyLength, StandardCharsets.UTF_8);
+            if (length == 2 + keyLength) {
+                entries.remove(key);
+            } else {
+                entries.put(key, StoreValues.fromJson(new String(payload, 2 + keyLength, length - 2 - keyLength, StandardCharsets.UTF_8)));
+            }
+            position += HEADER + length;
+        }
+    }
+
+    private void map(int capacity) throws IOException {
+        if (buffer != null) {
+            buffer.force();
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        force();
+        channel.close();
+        buffer = null;
+        deleteStale();
+        closed = true;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.store;
+
+import me.finalchild.nashornbukkit.NashornBukkit;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+
+/**
+ * Opens the stores of all scripts and owns the thread that writes them. Stores stay open when a script is reloaded,
+ * so its data stays in memory.
+ */
+public class StoreManager {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_\\-]+");
+    private static final long FORCE_SECONDS = 5;
+
+    private Path directory;
+    private ScheduledExecutorService writer;
+    private Map<String, ScriptStore> stores = new ConcurrentHashMap<>();
+
+    public StoreManager(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the store with the given name in the namespace of a script, opening it if needed.
+     */
+    public synchronized ScriptStore open(String namespace, String name) throws IOException {
+        if (!NAME.matcher(namespace).matches() || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Store names may only contain letters, digits, '_' and '-'");
+        }
+        String key = namespace + "/" + name;
+        ScriptStore store = stores.get(key);
+        if (store == null) {
+            store = new ScriptStore(name, directory.resolve(namespace), getWriter());
+            stores.put(key, store);
+        }
+        return store;
+    }
+
+    private ScheduledExecutorService getWriter() {
+        if (writer == null) {
+            writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "NashornBukkit Store Writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            writer.scheduleWithFixedDelay(() -> stores.values().forEach(ScriptStore::force), FORCE_SECONDS, FORCE_SECONDS, TimeUnit.SECONDS);
+        }
+        return writer;
+    }
+
+    /**
+     * Writes everything that is still queued and closes all stores.
+     */
+    public synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+        writer.execute(() -> {
+            for (ScriptStore store : stores.values()) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    NashornBukkit.getInstance().getLogger().log(Level.SEVERE, "Could not close store " + store.getName(), e);
+                }
+            }
+        });
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                NashornBukkit.getInstance().getLogger().severe("Timed out while writing stores");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        stores.clear();
+    }
+}
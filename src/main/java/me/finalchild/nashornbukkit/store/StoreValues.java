@@ -0,0 +1,154 @@
+/*
+ * This file is part of NashornBukkit, licensed under the MIT license (MIT).
+ *
+ * Copyright (c) Final Child <http://finalchild.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.finalchild.nashornbukkit.store;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts stored values. A stored value is null, a string, a boolean, a double, or an unmodifiable list or map of
+ * stored values, so it can be shared between threads and written as JSON.
+ */
+class StoreValues {
+
+    private static final JsonParser parser = new JsonParser();
+
+    static Object normalize(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Character) {
+            return value.toString();
+        }
+        if (value instanceof ScriptObjectMirror) {
+            ScriptObjectMirror mirror = (ScriptObjectMirror) value;
+            if (ScriptObjectMirror.isUndefined(mirror)) {
+                return null;
+            }
+            if (mirror.isFunction()) {
+                throw new IllegalArgumentException("Functions cannot be stored");
+            }
+            if (mirror.isArray()) {
+                return normalize(mirror.values());
+            }
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                list.add(normalize(element));
+            }
+            return Collections.unmodifiableList(list);
+        }
+        if (value instanceof Map) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put(String.valueOf(entry.getKey()), normalize(entry.getValue()));
+            }
+            return Collections.unmodifiableMap(map);
+        }
+        throw new IllegalArgumentException("Cannot store a " + value.getClass().getName());
+    }
+
+    static String toJson(Object value) {
+        return toElement(value).toString();
+    }
+
+    static Object fromJson(String json) {
+        return fromElement(parser.parse(json));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JsonElement toElement(Object value) {
+        if (value == null) {
+            return JsonNull.INSTANCE;
+        }
+        if (value instanceof String) {
+            return new JsonPrimitive((String) value);
+        }
+        if (value instanceof Boolean) {
+            return new JsonPrimitive((Boolean) value);
+        }
+        if (value instanceof Double) {
+            return new JsonPrimitive((Double) value);
+        }
+        if (value instanceof List) {
+            JsonArray array = new JsonArray();
+            for (Object element : (List<Object>) value) {
+                array.add(toElement(element));
+            }
+            return array;
+        }
+        JsonObject object = new JsonObject();
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+            object.add(entry.getKey(), toElement(entry.getValue()));
+        }
+        return object;
+    }
+
+    private static Object fromElement(JsonElement element) {
+        if (element.isJsonNull()) {
+            return null;
+        }
+        if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                return primitive.getAsBoolean();
+            }
+            if (primitive.isNumber()) {
+                return primitive.getAsDouble();
+            }
+            return primitive.getAsString();
+        }
+        if (element.isJsonArray()) {
+            List<Object> list = new ArrayList<>();
+            for (JsonElement child : element.getAsJsonArray()) {
+                list.add(fromElement(child));
+            }
+            return Collections.unmodifiableList(list);
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+            map.put(entry.getKey(), fromElement(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    private StoreValues() {
+    }
+}
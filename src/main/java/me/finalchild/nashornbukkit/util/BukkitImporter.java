@@ -26,45 +26,66 @@ package me.finalchild.nashornbukkit.util;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.reflect.ClassPath;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import jdk.nashorn.api.scripting.ScriptUtils;
-import jdk.nashorn.internal.runtime.Context;
-import jdk.nashorn.internal.runtime.ErrorManager;
-import jdk.nashorn.internal.runtime.options.Options;
+import jdk.internal.dynalink.beans.StaticClass;
+import jdk.nashorn.api.scripting.JSObject;
 import me.finalchild.nashornbukkit.NashornBukkit;
-import me.finalchild.nashornbukkit.script.Extension;
-import me.finalchild.nashornbukkit.script.Script;
+import me.finalchild.nashornbukkit.script.Host;
+import org.bukkit.Bukkit;
 
-import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
 
 public class BukkitImporter {
-    private static boolean caching;
-    private static Map<String, ClassPath.ClassInfo> typesCache;
+    private static Map<String, String> types;
 
-    public static Map<String, ClassPath.ClassInfo> getTypes() {
-        return getTypes(caching);
+    private Host host;
+    private Map<String, StaticClass> resolved = new ConcurrentHashMap<>();
+    private CompiledScript installer;
+
+    public BukkitImporter(Host host) {
+        this.host = host;
     }
 
-    public static Map<String, ClassPath.ClassInfo> getTypes(boolean cache) {
-        if (typesCache != null) {
-            return typesCache;
+    public static synchronized Map<String, String> getTypes() {
+        if (types != null) {
+            return types;
         }
 
+        Path indexFile = NashornBukkit.getInstance().getHost().getCacheDirectory().resolve("bukkit-types.txt");
+        String stamp = getBukkitStamp();
+
+        Map<String, String> result = stamp == null ? null : readIndex(indexFile, stamp);
+        if (result == null) {
+            result = scanTypes();
+            if (result == null) {
+                return Collections.emptyMap();
+            }
+            if (stamp != null) {
+                writeIndex(indexFile, stamp, result);
+            }
+        }
+
+        types = Collections.unmodifiableMap(result);
+        return types;
+    }
+
+    private static Map<String, String> scanTypes() {
         ClassPath classpath;
         try {
             classpath = ClassPath.from(NashornBukkit.class.getClassLoader());
@@ -73,105 +94,116 @@ public class BukkitImporter {
             return null;
         }
         ImmutableSet<ClassPath.ClassInfo> result = classpath.getTopLevelClassesRecursive("org.bukkit");
-        Map<String, ClassPath.ClassInfo> types = result.stream()
+        return result.stream()
                     .filter(e -> !(e.getName().startsWith("org.bukkit.craftbukkit")))
                     .filter(e -> !(e.getSimpleName().equals("package-info")))
-                    .collect(Collectors.toMap(ClassPath.ClassInfo::getSimpleName, Function.identity(), (a, b) -> {
-                        NashornBukkit.getInstance().getLogger().info("Duplicate class name: " + a.getName() + " and " + b.getName());
+                    .collect(Collectors.toMap(ClassPath.ClassInfo::getSimpleName, ClassPath.ClassInfo::getName, (a, b) -> {
+                        NashornBukkit.getInstance().getLogger().info("Duplicate class name: " + a + " and " + b);
                         return a;
-                    }));
-
-        if (cache) {
-            typesCache = types;
-        }
-        return Collections.unmodifiableMap(types);
+                    }, LinkedHashMap::new));
     }
 
-    public static void setCaching(boolean caching) {
-        if (!caching) {
-            typesCache = null;
+    private static String getBukkitStamp() {
+        try {
+            Path jar = Paths.get(Bukkit.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            return jar.toAbsolutePath() + ":" + Files.size(jar) + ":" + Files.getLastModifiedTime(jar).toMillis();
+        } catch (Exception e) {
+            return null;
         }
-        BukkitImporter.caching = caching;
     }
 
-    public static void importBukkit(Script script) throws IOException {
-        Bindings bindings = script.getContext().getBindings(ScriptContext.ENGINE_SCOPE);
-        Map<String, ClassPath.ClassInfo> types = getTypes();
-
-        Set<String> usedIdentifiers = getUsedIdentifiers(script.getFile());
-        usedIdentifiers.stream()
-                .filter(identifier -> Character.isUpperCase(identifier.charAt(0)))
-                .filter(types::containsKey)
-                .forEach(identifier -> {
-                    ClassPath.ClassInfo type = types.get(identifier);
-                    try {
-                        bindings.put(identifier, script.getHost().getEngine().eval("Java.type(\"" + type.getName() + "\")", script.getContext()));
-                    } catch (ScriptException e) {
-                        e.printStackTrace();
-                    }
-                });
+    private static Map<String, String> readIndex(Path indexFile, String stamp) {
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals("# " + stamp)) {
+                return null;
+            }
+            Map<String, String> result = new LinkedHashMap<>();
+            for (String line : lines.subList(1, lines.size())) {
+                int separator = line.indexOf('=');
+                if (separator > 0) {
+                    result.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
-    public static void importBukkit(Script script, Extension extension) throws IOException {
-        Bindings bindings = script.getContext().getBindings(ScriptContext.ENGINE_SCOPE);
-        Map<String, ClassPath.ClassInfo> types = getTypes();
-
-        Set<String> usedIdentifiers = getUsedIdentifiers(extension.getFile());
-        usedIdentifiers.stream()
-                .filter(e -> Character.isUpperCase(e.charAt(0)))
-                .filter(types::containsKey)
-                .forEach(e -> {
-                    ClassPath.ClassInfo type = types.get(e);
-                    try {
-                        bindings.put(e, script.getHost().getEngine().eval("Java.type(\"" + type.getName() + "\")", script.getContext()));
-                    } catch (ScriptException e1) {
-                        e1.printStackTrace();
-                    }
-                });
+    private static void writeIndex(Path indexFile, String stamp, Map<String, String> types) {
+        List<String> lines = new ArrayList<>(types.size() + 1);
+        lines.add("# " + stamp);
+        types.forEach((simpleName, name) -> lines.add(simpleName + "=" + name));
+        try {
+            Files.createDirectories(indexFile.getParent());
+            Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
-    public static Set<String> getUsedIdentifiers(Path file) throws IOException {
-        Set<String> result = new HashSet<>();
-        String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
-        String json;
-
-        Options options = new Options("");
-        ErrorManager errorManager = new ErrorManager();
-        Context context = new Context(options, errorManager, NashornBukkit.class.getClassLoader());
-        Context.setGlobal(context.createGlobal());
-        json = ScriptUtils.parse(text, file.getFileName().toString(), false);
-
-        JsonParser jsonParser = new JsonParser();
-        JsonObject rootObj = jsonParser.parse(json).getAsJsonObject();
-
-        addUsedIdentifiers(rootObj, result);
-        return result;
+    /**
+     * Makes every Bukkit type available in the global of the given context by its simple name. Nothing is loaded
+     * up front: the first read of an unknown name looks the type up, and the result is stored in the global so later
+     * reads are plain property reads. Names that are not Bukkit types behave as before.
+     */
+    public void install(ScriptContext context) throws ScriptException {
+        Object global = host.getEngine().eval("this", context);
+        ((JSObject) getInstaller().eval(context)).call(null, global, this);
     }
 
-    private static void addUsedIdentifiers(JsonObject obj, Set<String> set) {
-        if (obj.has("type")) {
-            String type = obj.getAsJsonPrimitive("type").getAsString();
-            if (type.equals("Identifier")) {
-                set.add(obj.getAsJsonPrimitive("name").getAsString());
-                return;
-            }
+    /**
+     * Returns the type with the given simple name, or null if there is none. Types are shared by every script.
+     */
+    public StaticClass resolve(String name) {
+        if (name.isEmpty() || !Character.isUpperCase(name.charAt(0))) {
+            return null;
         }
-        for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
-            if (entry.getValue().isJsonObject()) {
-                addUsedIdentifiers(entry.getValue().getAsJsonObject(), set);
-            } else if (entry.getValue().isJsonArray()) {
-                addUsedIdentifiers(entry.getValue().getAsJsonArray(), set);
+        return resolved.computeIfAbsent(name, simpleName -> {
+            String className = getTypes().get(simpleName);
+            if (className == null) {
+                return null;
             }
-        }
+            try {
+                return StaticClass.forClass(Class.forName(className, true, NashornBukkit.class.getClassLoader()));
+            } catch (ClassNotFoundException | LinkageError e) {
+                NashornBukkit.getInstance().getLogger().log(Level.WARNING, "Could not load " + className, e);
+                return null;
+            }
+        });
     }
 
-    private static void addUsedIdentifiers(JsonArray arr, Set<String> set) {
-        for (JsonElement element : arr) {
-            if (element.isJsonObject()) {
-                addUsedIdentifiers(element.getAsJsonObject(), set);
-            } else if (element.isJsonArray()) {
-                addUsedIdentifiers(element.getAsJsonArray(), set);
-            }
+    public int getResolvedCount() {
+        return resolved.size();
+    }
+
+    private synchronized CompiledScript getInstaller() throws ScriptException {
+        if (installer == null) {
+            // Nashorn skips frames whose source ends in .java when it locates an error, so the ReferenceError that
+            // the original hook throws for an unknown name points at the script that read it instead of this hook.
+            installer = ((Compilable) host.getEngine()).compile("(function(global, importer) {\n"
+                    + "  var original = global.__noSuchProperty__;\n"
+                    + "  Object.defineProperty(global, '__noSuchProperty__', {\n"
+                    + "    value: function(name) {\n"
+                    + "      'use strict';\n"
+                    + "      var type = importer.resolve(name);\n"
+                    + "      if (type === null) {\n"
+                    + "        return original.call(this, name);\n"
+                    + "      }\n"
+                    + "      global[name] = type;\n"
+                    + "      return type;\n"
+                    + "    }\n"
+                    + "  });\n"
+                    + "})\n"
+                    + "//# sourceURL=me/finalchild/nashornbukkit/util/BukkitImporter.java");
         }
+        return installer;
     }
 }
@@ -28,12 +28,15 @@ import org.bukkit.Bukkit;
 import org.bukkit.Server;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandMap;
+import org.bukkit.command.SimpleCommandMap;
 
 import java.lang.reflect.Field;
+import java.util.Map;
 
 public class CommandUtil {
 
     private static CommandMap commandMap;
+    private static Map<String, Command> knownCommands;
 
     public static CommandMap getCommandMap() {
         if (commandMap == null) {
@@ -53,4 +56,23 @@ public class CommandUtil {
     public static boolean register(String name, Command command) {
         return getCommandMap().register(name, command);
     }
+
+    public static void unregister(Command command) {
+        command.unregister(getCommandMap());
+        getKnownCommands().values().removeIf(knownCommand -> knownCommand == command);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Command> getKnownCommands() {
+        if (knownCommands == null) {
+            try {
+                Field knownCommandsField = SimpleCommandMap.class.getDeclaredField("knownCommands");
+                knownCommandsField.setAccessible(true);
+                knownCommands = (Map<String, Command>) knownCommandsField.get(getCommandMap());
+            } catch (Throwable t) {
+                throw new UnsupportedOperationException("knownCommands reflection failed.", t);
+            }
+        }
+        return knownCommands;
+    }
 }
@@ -28,6 +28,7 @@ import jdk.nashorn.api.scripting.NashornException;
 import me.finalchild.nashornbukkit.NashornBukkit;
 
 import javax.script.ScriptException;
+import java.util.logging.Level;
 
 public class ScriptExceptionLogger {
     public static void log(ScriptException e) {
@@ -39,4 +40,17 @@ public class ScriptExceptionLogger {
             e.printStackTrace();
         }
     }
+
+    public static void log(String message) {
+        NashornBukkit.getInstance().getLogger().severe(message);
+    }
+
+    public static void log(String message, Throwable t) {
+        if (t instanceof NashornException) {
+            NashornBukkit.getInstance().getLogger().severe(message + ": " + t.getMessage());
+            NashornBukkit.getInstance().getLogger().severe(NashornException.getScriptStackString(t));
+        } else {
+            NashornBukkit.getInstance().getLogger().log(Level.SEVERE, message, t);
+        }
+    }
 }
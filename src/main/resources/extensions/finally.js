@@ -1,10 +1,10 @@
 var nashornBukkit = Java.type("me.finalchild.nashornbukkit.NashornBukkit").getInstance();
 
-Function.prototype.on = function(event, eventPriority) {
-  if (eventPriority == undefined) {
+Function.prototype.on = function(event, eventPriorityOrOptions) {
+  if (eventPriorityOrOptions == undefined) {
     script.on(event, this);
   } else {
-    script.on(event, this, eventPriority)
+    script.on(event, this, eventPriorityOrOptions)
   }
 }
 
@@ -55,3 +55,11 @@ Function.prototype.runTaskTimerAsynchronously = function(delay, period) {
 Function.prototype.timerAsync = function(delay, period) {
   return script.runTaskTimerAsynchronously(this, delay, period);
 }
+
+Function.prototype.task = function(period) {
+  if (period == undefined) {
+    return script.task(this);
+  } else {
+    return script.task(this, period);
+  }
+}